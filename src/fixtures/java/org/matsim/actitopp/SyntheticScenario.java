@@ -0,0 +1,224 @@
+package org.matsim.actitopp;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.matsim.actitopp.IvtPopulationParser.AttributeLabels;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A synthetic scenario for the tests and benchmarks of {@link RunActitoppForIvtPopulation}: a grid network, square
+ * municipalities and persons with random attributes, all created from a fixed seed, so that two calls give equal
+ * scenarios. It is in a source directory of its own, which the build adds to the tests and to the benchmarks.
+ *
+ * @author dziemke
+ */
+final class SyntheticScenario {
+    private static final double NODE_SPACING = 500.;
+    private static final int DESTINATIONS_PER_ORIGIN = 5;
+    private static final long SEED = 4711;
+
+    private final int gridSize;
+    private final int municipalitiesPerSide;
+
+    /**
+     * @param gridSize nodes per side of the square grid network
+     * @param municipalitiesPerSide municipalities per side of the square study area
+     */
+    SyntheticScenario(int gridSize, int municipalitiesPerSide) {
+        this.gridSize = gridSize;
+        this.municipalitiesPerSide = municipalitiesPerSide;
+    }
+
+    MutableScenario createScenario(int numberOfPersons) {
+        MutableScenario scenario = ScenarioUtils.createMutableScenario(ConfigUtils.createConfig());
+        createGridNetwork(scenario.getNetwork());
+        createPopulation(scenario, numberOfPersons, new Random(SEED));
+        return scenario;
+    }
+
+    /**
+     * @return a generator for the scenario, without periodic metrics reports
+     */
+    RunActitoppForIvtPopulation createGenerator(Scenario scenario) {
+        RunActitoppForIvtPopulation generator = new RunActitoppForIvtPopulation(scenario, createMunicipalities(), createCommutes(new Random(SEED)));
+        generator.setMetricsOutput(0, null);
+        return generator;
+    }
+
+    /**
+     * @return the number of municipalities; their ids are 1 to this number
+     */
+    int getNumberOfMunicipalities() {
+        return municipalitiesPerSide * municipalitiesPerSide;
+    }
+
+    /**
+     * @return for every person, a text with all plans and their elements, to compare the plans of two populations
+     */
+    static Map<String, String> describePlans(Population population) {
+        Map<String, String> descriptions = new TreeMap<>();
+        for (Person person : population.getPersons().values()) {
+            StringBuilder description = new StringBuilder();
+            for (Plan plan : person.getPlans()) {
+                description.append(plan == person.getSelectedPlan() ? "selected plan:" : "plan:");
+                for (PlanElement planElement : plan.getPlanElements()) {
+                    if (planElement instanceof Activity) {
+                        Activity activity = (Activity) planElement;
+                        description.append(' ').append(activity.getType()).append('@').append(activity.getCoord())
+                                .append('/').append(activity.getFacilityId()).append('/').append(activity.getLinkId())
+                                .append(' ').append(activity.getStartTime().orElse(-1.)).append('-').append(activity.getEndTime().orElse(-1.));
+                    } else {
+                        Leg leg = (Leg) planElement;
+                        description.append(' ').append(leg.getMode()).append(' ').append(leg.getRoute());
+                    }
+                }
+                description.append('\n');
+            }
+            description.append(person.getAttributes().getAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString()));
+            descriptions.put(person.getId().toString(), description.toString());
+        }
+        return descriptions;
+    }
+
+    private void createGridNetwork(Network network) {
+        NetworkFactory factory = network.getFactory();
+        Node[][] nodes = new Node[gridSize][gridSize];
+        for (int x = 0; x < gridSize; x++) {
+            for (int y = 0; y < gridSize; y++) {
+                nodes[x][y] = factory.createNode(Id.createNodeId(x + "_" + y), new Coord(x * NODE_SPACING, y * NODE_SPACING));
+                network.addNode(nodes[x][y]);
+            }
+        }
+        for (int x = 0; x < gridSize; x++) {
+            for (int y = 0; y < gridSize; y++) {
+                if (x + 1 < gridSize) {
+                    addLinks(network, nodes[x][y], nodes[x + 1][y]);
+                }
+                if (y + 1 < gridSize) {
+                    addLinks(network, nodes[x][y], nodes[x][y + 1]);
+                }
+            }
+        }
+    }
+
+    private static void addLinks(Network network, Node node, Node otherNode) {
+        for (Node[] fromTo : new Node[][]{{node, otherNode}, {otherNode, node}}) {
+            Link link = network.getFactory().createLink(Id.createLinkId(fromTo[0].getId() + "-" + fromTo[1].getId()), fromTo[0], fromTo[1]);
+            link.setLength(NODE_SPACING);
+            link.setFreespeed(13.9);
+            link.setCapacity(1000.);
+            link.setNumberOfLanes(1.);
+            link.setAllowedModes(new HashSet<>(Collections.singletonList(TransportMode.car)));
+            network.addLink(link);
+        }
+    }
+
+    private double getExtent() {
+        return (gridSize - 1) * NODE_SPACING;
+    }
+
+    private int getMunicipality(Coord coord) {
+        double size = getExtent() / municipalitiesPerSide;
+        int column = Math.min(municipalitiesPerSide - 1, (int) (coord.getX() / size));
+        int line = Math.min(municipalitiesPerSide - 1, (int) (coord.getY() / size));
+        return 1 + line * municipalitiesPerSide + column;
+    }
+
+    private MunicipalityRegistry createMunicipalities() {
+        int numberOfMunicipalities = getNumberOfMunicipalities();
+        double size = getExtent() / municipalitiesPerSide;
+        GeometryFactory geometryFactory = new GeometryFactory();
+        int[] municipalityIds = new int[numberOfMunicipalities];
+        int[] cantonIds = new int[numberOfMunicipalities];
+        double[] centerX = new double[numberOfMunicipalities];
+        double[] centerY = new double[numberOfMunicipalities];
+        Geometry[] geometries = new Geometry[numberOfMunicipalities];
+        for (int line = 0; line < municipalitiesPerSide; line++) {
+            for (int column = 0; column < municipalitiesPerSide; column++) {
+                int i = line * municipalitiesPerSide + column;
+                double minX = column * size;
+                double minY = line * size;
+                municipalityIds[i] = i + 1;
+                cantonIds[i] = 1;
+                centerX[i] = minX + size / 2;
+                centerY[i] = minY + size / 2;
+                geometries[i] = geometryFactory.createPolygon(new Coordinate[]{new Coordinate(minX, minY),
+                        new Coordinate(minX + size, minY), new Coordinate(minX + size, minY + size),
+                        new Coordinate(minX, minY + size), new Coordinate(minX, minY)});
+            }
+        }
+        return new MunicipalityRegistry(municipalityIds, cantonIds, centerX, centerY, geometries);
+    }
+
+    private CommuteDestinationSampler createCommutes(Random random) {
+        int numberOfMunicipalities = getNumberOfMunicipalities();
+        Map<Integer, Map<Integer, Double>> weights = new TreeMap<>();
+        for (int origin = 1; origin <= numberOfMunicipalities; origin++) {
+            Map<Integer, Double> destinationWeights = new TreeMap<>();
+            destinationWeights.put(origin, 50.); // Commutes within the home municipality
+            for (int i = 0; i < DESTINATIONS_PER_ORIGIN; i++) {
+                destinationWeights.put(1 + random.nextInt(numberOfMunicipalities), 1. + random.nextInt(100));
+            }
+            weights.put(origin, destinationWeights);
+        }
+        return CommuteDestinationSampler.create(weights);
+    }
+
+    private void createPopulation(MutableScenario scenario, int numberOfPersons, Random random) {
+        Population population = scenario.getPopulation();
+        ActivityFacilities facilities = scenario.getActivityFacilities();
+        IvtPopulationParser.Gender[] genders = IvtPopulationParser.Gender.values();
+        IvtPopulationParser.MunicipalityType[] municipalityTypes = IvtPopulationParser.MunicipalityType.values();
+        int numberOfHouseholds = Math.max(1, numberOfPersons / 2);
+        ActivityFacility[] homes = new ActivityFacility[numberOfHouseholds];
+        for (int i = 0; i < numberOfHouseholds; i++) {
+            Coord homeCoord = new Coord(random.nextDouble() * getExtent(), random.nextDouble() * getExtent());
+            homes[i] = facilities.getFactory().createActivityFacility(Id.create(i, ActivityFacility.class), homeCoord);
+            facilities.addActivityFacility(homes[i]);
+        }
+        for (int i = 0; i < numberOfPersons; i++) {
+            // Two persons per household on average, so that households of several persons occur
+            ActivityFacility home = homes[random.nextInt(numberOfHouseholds)];
+            Person person = population.getFactory().createPerson(Id.createPersonId(i));
+            int age = 10 + random.nextInt(80);
+            boolean childrenUnder18 = random.nextDouble() < 0.3;
+            person.getAttributes().putAttribute(AttributeLabels.age.toString(), age);
+            person.getAttributes().putAttribute(AttributeLabels.gender.toString(), genders[random.nextInt(genders.length)].toString());
+            person.getAttributes().putAttribute(AttributeLabels.employed.toString(), age >= 18 && age < 65 && random.nextDouble() < 0.8);
+            person.getAttributes().putAttribute(AttributeLabels.children_0_18.toString(), childrenUnder18);
+            person.getAttributes().putAttribute(AttributeLabels.children_0_10.toString(), childrenUnder18 && random.nextBoolean());
+            person.getAttributes().putAttribute(AttributeLabels.number_of_cars.toString(), random.nextInt(4));
+            person.getAttributes().putAttribute(AttributeLabels.municipality_type.toString(),
+                    municipalityTypes[random.nextInt(municipalityTypes.length)].toString());
+            person.getAttributes().putAttribute(AttributeLabels.municipality_id.toString(), getMunicipality(home.getCoord()));
+            person.getAttributes().putAttribute(AttributeLabels.canton_id.toString(), 1);
+            person.getAttributes().putAttribute(AttributeLabels.facility_id.toString(), home.getId().toString());
+            population.addPerson(person);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.HWeekPattern;
+import edu.kit.ifv.mobitopp.actitopp.RNGHelper;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.facilities.ActivityFacility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the steps of {@link RunActitoppForIvtPopulation} that are executed for every person, on a synthetic grid
+ * network with square municipalities and a synthetic population, the {@link SyntheticScenario} of the tests. Build and
+ * run with
+ * <pre>
+ * mvn -P benchmarks package -DskipTests
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ * The gc profiler adds the allocation rate to the throughput. Sizes are set with e.g. {@code -p gridSize=100}.
+ *
+ * @author dziemke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ActitoppGenerationBenchmark {
+
+    private static final int NUMBER_OF_PATTERNS = 100;
+
+    // Nodes per side of the square grid network
+    @Param({"50"})
+    public int gridSize;
+
+    // Municipalities per side of the square study area
+    @Param({"10"})
+    public int municipalitiesPerSide;
+
+    @Param({"10000"})
+    public int numberOfPersons;
+
+    private RunActitoppForIvtPopulation generator;
+    private Population population;
+    private List<Person> persons;
+    private PersonAttributeColumns columns;
+    private Coord[] homeCoords;
+    private int[] homeNodes;
+    private ActitoppPersonInput[] inputs;
+    private HWeekPattern[] patterns;
+    private WeekSchedule[] schedules;
+    private int numberOfMunicipalities;
+    private int nextRow = 0;
+    private long nextSeed = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(4711);
+        SyntheticScenario syntheticScenario = new SyntheticScenario(gridSize, municipalitiesPerSide);
+        MutableScenario scenario = syntheticScenario.createScenario(numberOfPersons);
+        numberOfMunicipalities = syntheticScenario.getNumberOfMunicipalities();
+
+        generator = syntheticScenario.createGenerator(scenario);
+        generator.startScheduleGeneration();
+
+        population = scenario.getPopulation();
+        persons = new ArrayList<>(population.getPersons().values());
+        columns = PersonAttributeColumns.create(persons, scenario.getActivityFacilities());
+        homeCoords = new Coord[persons.size()];
+        homeNodes = new int[persons.size()];
+        inputs = new ActitoppPersonInput[persons.size()];
+        for (int row = 0; row < persons.size(); row++) {
+            ActivityFacility homeFacility = columns.getHomeFacility(row);
+            homeCoords[row] = homeFacility.getCoord();
+            homeNodes[row] = generator.getHomeNode(homeFacility);
+            inputs[row] = generator.createActitoppInputSwitzerland(columns, row, homeCoords[row], homeNodes[row], random);
+        }
+        patterns = new HWeekPattern[NUMBER_OF_PATTERNS];
+        for (int i = 0; i < NUMBER_OF_PATTERNS; i++) {
+            for (int row = i; patterns[i] == null; row++) {
+                if (row >= i + inputs.length) {
+                    throw new IllegalStateException("No valid week pattern could be created for any person.");
+                }
+                patterns[i] = generator.createActitoppWeekPattern(inputs[row % inputs.length], new RNGHelper(i));
+            }
+        }
+        schedules = new WeekSchedule[NUMBER_OF_PATTERNS];
+        for (int i = 0; i < NUMBER_OF_PATTERNS; i++) {
+            schedules[i] = WeekSchedule.of(patterns[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        generator.finishScheduleGeneration();
+    }
+
+    // Results go to the black hole instead of being returned, as the generated benchmark code cannot access package-private types
+    @Benchmark
+    public void createActitoppInput(Blackhole blackhole) {
+        int row = nextRow();
+        blackhole.consume(generator.createActitoppInputSwitzerland(columns, row, homeCoords[row], homeNodes[row], new Random(nextSeed++)));
+    }
+
+    @Benchmark
+    public double getCommutingDistance() {
+        int row = nextRow();
+        return generator.getCommutingDistance(homeCoords[row], homeNodes[row], columns.getMunicipalityId(row), 1 + row % numberOfMunicipalities);
+    }
+
+    @Benchmark
+    public HWeekPattern createActitoppWeekPattern() {
+        return generator.createActitoppWeekPattern(inputs[nextRow()], new RNGHelper(nextSeed++));
+    }
+
+    @Benchmark
+    public Plan createMatsimPlan() {
+        int row = nextRow();
+        return generator.createMatsimPlan(schedules[row % schedules.length], population, homeCoords[row],
+                columns.getMunicipalityId(row), columns.getWorkEduMunicipality(row), 0, new Random(nextSeed++));
+    }
+
+    private int nextRow() {
+        int row = nextRow;
+        nextRow = (nextRow + 1) % persons.size();
+        return row;
+    }
+}
@@ -1,7 +1,40 @@
 package org.matsim.actitopp;
 
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
 class ActiToppUtils {
 
+    /**
+     * Derives a seed for one random stream of one person. The seed only depends on the base seed, the person id and the
+     * stream, so that a person obtains the same random numbers no matter in which order or on which thread it is processed.
+     */
+    static long createSeed(long baseSeed, Id<Person> personId, int stream) {
+        return createSeed(baseSeed, personId.toString().hashCode(), stream);
+    }
+
+    static long createSeed(long baseSeed, long key, int stream) {
+        long seed = baseSeed;
+        seed = mix(seed + key);
+        seed = mix(seed + stream);
+        return seed;
+    }
+
+    /**
+     * Adds a value to a hash, such that a change of any value added changes the result.
+     */
+    static long combine(long hash, long value) {
+        return mix(hash + value);
+    }
+
+    // Finalizer of the SplitMix64 generator; spreads similar inputs (such as consecutive person ids) over the full range
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     class Relation {
     }
 
@@ -11,5 +44,3 @@ class ActiToppUtils {
     class Municipality {
     }
 }
-
-
@@ -12,7 +12,7 @@ import edu.kit.ifv.mobitopp.actitopp.RNGHelper;
 
 public class ActitoppExample {
 
-	private static ModelFileBase fileBase = new ModelFileBase();
+	private static ModelFileBase fileBase = ActitoppModelState.getShared().getFileBase();
 	private static RNGHelper randomgenerator = new RNGHelper(1234);
 
 	public static void main(String[] args) {
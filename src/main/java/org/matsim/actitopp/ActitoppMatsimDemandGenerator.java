@@ -36,7 +36,7 @@ import playground.vsp.openberlinscenario.cemdap.input.CEMDAPPersonAttributes;
 public class ActitoppMatsimDemandGenerator {
 	private static final Logger LOG = Logger.getLogger(ActitoppMatsimDemandGenerator.class);
 
-	private static ModelFileBase fileBase = new ModelFileBase();
+	private static ModelFileBase fileBase = ActitoppModelState.getShared().getFileBase();
 	private static RNGHelper randomgenerator = new RNGHelper(1234);
 
 	public static void main(String[] args) {
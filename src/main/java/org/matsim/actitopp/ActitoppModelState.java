@@ -0,0 +1,123 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ModelFileBase;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The actitopp model parameters, parsed once per JVM and shared by all classes and threads that generate schedules.
+ * Generating a schedule only reads the {@link ModelFileBase}, so one instance can be used by any number of threads; it
+ * must not be modified after loading. ActitoppModelStateTest checks that a shared instance gives the same schedules as
+ * one instance per thread.
+ *
+ * @author dziemke
+ */
+public final class ActitoppModelState {
+    private static final Logger LOG = Logger.getLogger(ActitoppModelState.class);
+
+    private final ModelFileBase fileBase;
+    private final long loadMillis;
+
+    private ActitoppModelState(ModelFileBase fileBase, long loadMillis) {
+        this.fileBase = fileBase;
+        this.loadMillis = loadMillis;
+    }
+
+    // Loaded on first use; class initialization makes the instance visible to all threads
+    private static final class SharedHolder {
+        private static final ActitoppModelState SHARED = load();
+    }
+
+    /**
+     * @return the model state shared within this JVM, loaded on first call
+     */
+    public static ActitoppModelState getShared() {
+        return SharedHolder.SHARED;
+    }
+
+    private static final class FingerprintHolder {
+        private static final String MODEL_FINGERPRINT = createModelFingerprint();
+    }
+
+    /**
+     * @return a hash of the contents of the actitopp jar or classes directory, which includes the model parameter files,
+     * or null if it cannot be determined
+     */
+    static String getModelFingerprint() {
+        return FingerprintHolder.MODEL_FINGERPRINT;
+    }
+
+    /**
+     * Parses the actitopp model files.
+     */
+    public static ActitoppModelState load() {
+        long startMillis = System.currentTimeMillis();
+        ModelFileBase fileBase = new ModelFileBase();
+        long loadMillis = System.currentTimeMillis() - startMillis;
+        LOG.info("actitopp model parsed in " + loadMillis + " ms; it is shared by all threads (no per-thread copies).");
+        return new ActitoppModelState(fileBase, loadMillis);
+    }
+
+    private static String createModelFingerprint() {
+        try {
+            CodeSource codeSource = ModelFileBase.class.getProtectionDomain().getCodeSource();
+            URL location = codeSource == null ? null : codeSource.getLocation();
+            if (location == null) {
+                LOG.warn("Location of actitopp unknown; its model files cannot be hashed.");
+                return null;
+            }
+            Path path = Paths.get(location.toURI());
+            List<Path> files;
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.walk(path)) {
+                    files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+            } else {
+                files = Collections.singletonList(path);
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            for (Path file : files) {
+                digest.update(path.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                    while (in.read(buffer) != -1) {
+                        // The digest is updated while reading
+                    }
+                }
+            }
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : digest.digest()) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (IOException | URISyntaxException | NoSuchAlgorithmException | RuntimeException e) {
+            LOG.warn("actitopp model files could not be hashed.", e);
+            return null;
+        }
+    }
+
+
+    public ModelFileBase getFileBase() {
+        return fileBase;
+    }
+
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+}
@@ -0,0 +1,98 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActitoppPerson;
+
+/**
+ * The attributes from which actitopp creates a schedule for one person, using actitopp's integer coding.
+ *
+ * @author dziemke
+ */
+final class ActitoppPersonInput {
+    private final int personIndex;
+    private final int childrenFrom0To10;
+    private final int childrenUnder18;
+    private final int age;
+    private final int employment;
+    private final int gender;
+    private final int areaType;
+    private final int numberOfCarsInHousehold;
+    private final double commutingDistanceToWork;
+    private final double commutingDistanceToEducation;
+
+    ActitoppPersonInput(int personIndex, int childrenFrom0To10, int childrenUnder18, int age, int employment, int gender,
+                        int areaType, int numberOfCarsInHousehold, double commutingDistanceToWork, double commutingDistanceToEducation) {
+        this.personIndex = personIndex;
+        this.childrenFrom0To10 = childrenFrom0To10;
+        this.childrenUnder18 = childrenUnder18;
+        this.age = age;
+        this.employment = employment;
+        this.gender = gender;
+        this.areaType = areaType;
+        this.numberOfCarsInHousehold = numberOfCarsInHousehold;
+        this.commutingDistanceToWork = commutingDistanceToWork;
+        this.commutingDistanceToEducation = commutingDistanceToEducation;
+    }
+
+    ActitoppPerson createActitoppPerson() {
+        return new ActitoppPerson(personIndex, childrenFrom0To10, childrenUnder18, age, employment, gender, areaType,
+                numberOfCarsInHousehold, commutingDistanceToWork, commutingDistanceToEducation);
+    }
+
+    /**
+     * @return a hash of all attributes and the given seed; equal attributes and seeds give equal keys
+     */
+    long createKey(long seed) {
+        long key = seed;
+        key = ActiToppUtils.combine(key, personIndex);
+        key = ActiToppUtils.combine(key, childrenFrom0To10);
+        key = ActiToppUtils.combine(key, childrenUnder18);
+        key = ActiToppUtils.combine(key, age);
+        key = ActiToppUtils.combine(key, employment);
+        key = ActiToppUtils.combine(key, gender);
+        key = ActiToppUtils.combine(key, areaType);
+        key = ActiToppUtils.combine(key, numberOfCarsInHousehold);
+        key = ActiToppUtils.combine(key, Double.doubleToLongBits(commutingDistanceToWork));
+        key = ActiToppUtils.combine(key, Double.doubleToLongBits(commutingDistanceToEducation));
+        return key;
+    }
+
+    int getPersonIndex() {
+        return personIndex;
+    }
+
+    int getChildrenFrom0To10() {
+        return childrenFrom0To10;
+    }
+
+    int getChildrenUnder18() {
+        return childrenUnder18;
+    }
+
+    int getAge() {
+        return age;
+    }
+
+    int getEmployment() {
+        return employment;
+    }
+
+    int getGender() {
+        return gender;
+    }
+
+    int getAreaType() {
+        return areaType;
+    }
+
+    int getNumberOfCarsInHousehold() {
+        return numberOfCarsInHousehold;
+    }
+
+    double getCommutingDistanceToWork() {
+        return commutingDistanceToWork;
+    }
+
+    double getCommutingDistanceToEducation() {
+        return commutingDistanceToEducation;
+    }
+}
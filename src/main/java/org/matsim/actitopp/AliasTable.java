@@ -0,0 +1,76 @@
+package org.matsim.actitopp;
+
+import java.util.Random;
+
+/**
+ * Discrete distribution over the indices 0..n-1 that can be sampled in constant time (alias method after Walker, with
+ * the numerically stable construction by Vose).
+ *
+ * @author dziemke
+ */
+final class AliasTable {
+    private final double[] probabilities;
+    private final int[] aliases;
+
+    AliasTable(double[] weights) {
+        int size = weights.length;
+        if (size == 0) {
+            throw new IllegalArgumentException("Weights must not be empty.");
+        }
+        double sum = 0.;
+        for (double weight : weights) {
+            if (weight < 0. || Double.isNaN(weight)) {
+                throw new IllegalArgumentException("Weights must not be negative, but one is " + weight + ".");
+            }
+            sum += weight;
+        }
+        if (sum <= 0.) {
+            throw new IllegalArgumentException("Weights must not all be zero.");
+        }
+
+        this.probabilities = new double[size];
+        this.aliases = new int[size];
+
+        double[] scaled = new double[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < size; i++) {
+            scaled[i] = weights[i] * size / sum;
+            if (scaled[i] < 1.) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probabilities[less] = scaled[less];
+            aliases[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.;
+            if (scaled[more] < 1.) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Remaining entries are (up to rounding errors) exactly full
+        while (largeCount > 0) {
+            probabilities[large[--largeCount]] = 1.;
+        }
+        while (smallCount > 0) {
+            probabilities[small[--smallCount]] = 1.;
+        }
+    }
+
+    int sample(Random random) {
+        int column = random.nextInt(probabilities.length);
+        return random.nextDouble() < probabilities[column] ? column : aliases[column];
+    }
+
+    int size() {
+        return probabilities.length;
+    }
+}
@@ -0,0 +1,137 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assigns the nearest car link to every activity of a plan and routes all car legs with freespeed travel times, so that
+ * MATSim does not need to do this before the first iteration. Uses the graph and node snapper of the generator; the
+ * nearest link is searched among the links adjacent to the nearest node. Legs whose destination cannot be reached are
+ * left without route. Can be used from several threads.
+ *
+ * @author dziemke
+ */
+final class CarPlanRouter {
+    private static final Logger LOG = Logger.getLogger(CarPlanRouter.class);
+
+    private final CompactCarGraph carGraph;
+    private final NetworkNodeSnapper nodeSnapper;
+    private final double[] linkTravelTimes;
+    private final ThreadLocal<CompactCarGraph.PathSearch> pathSearches;
+    private final LongAdder routedLegs = new LongAdder();
+    private final LongAdder unroutedLegs = new LongAdder();
+
+    CarPlanRouter(CompactCarGraph carGraph, NetworkNodeSnapper nodeSnapper) {
+        this.carGraph = carGraph;
+        this.nodeSnapper = nodeSnapper;
+        this.linkTravelTimes = new double[carGraph.getLinkCount()];
+        for (int i = 0; i < linkTravelTimes.length; i++) {
+            Link link = carGraph.getLink(i);
+            linkTravelTimes[i] = link.getLength() / link.getFreespeed();
+        }
+        this.pathSearches = ThreadLocal.withInitial(() -> carGraph.new PathSearch());
+    }
+
+    void route(Plan plan) {
+        List<Activity> activities = new ArrayList<>();
+        for (PlanElement planElement : plan.getPlanElements()) {
+            if (planElement instanceof Activity) {
+                Activity activity = (Activity) planElement;
+                activity.setLinkId(carGraph.getLink(findNearestLink(activity.getCoord())).getId());
+                activities.add(activity);
+            }
+        }
+
+        int activityIndex = 0;
+        for (PlanElement planElement : plan.getPlanElements()) {
+            if (planElement instanceof Activity) {
+                activityIndex++;
+            } else {
+                Leg leg = (Leg) planElement;
+                if (TransportMode.car.equals(leg.getMode())) {
+                    routeLeg(leg, activities.get(activityIndex - 1), activities.get(activityIndex));
+                }
+            }
+        }
+    }
+
+    private int findNearestLink(Coord coord) {
+        Node node = carGraph.getNode(nodeSnapper.snap(coord));
+        Link nearestLink = null;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (Link link : node.getInLinks().values()) {
+            double distance = CoordUtils.distancePointLinesegment(link.getFromNode().getCoord(), link.getToNode().getCoord(), coord);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearestLink = link;
+            }
+        }
+        for (Link link : node.getOutLinks().values()) {
+            double distance = CoordUtils.distancePointLinesegment(link.getFromNode().getCoord(), link.getToNode().getCoord(), coord);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearestLink = link;
+            }
+        }
+        if (nearestLink == null) {
+            throw new IllegalStateException("Node " + node.getId() + " has no links.");
+        }
+        return carGraph.getLinkIndex(nearestLink);
+    }
+
+    private void routeLeg(Leg leg, Activity fromActivity, Activity toActivity) {
+        int startLink = carGraph.getLinkIndex(fromActivity.getLinkId());
+        int endLink = carGraph.getLinkIndex(toActivity.getLinkId());
+        int[] path;
+        if (startLink == endLink) {
+            path = new int[0];
+        } else {
+            path = pathSearches.get().calcLeastCostPath(carGraph.getLinkToNode(startLink), carGraph.getLinkFromNode(endLink), linkTravelTimes);
+            if (path == null) {
+                unroutedLegs.increment();
+                return;
+            }
+        }
+
+        List<Id<Link>> linkIds = new ArrayList<>(path.length);
+        double travelTime = 0.;
+        double distance = 0.;
+        for (int link : path) {
+            linkIds.add(carGraph.getLink(link).getId());
+            travelTime += linkTravelTimes[link];
+            distance += carGraph.getLink(link).getLength();
+        }
+        if (startLink != endLink) {
+            travelTime += linkTravelTimes[endLink];
+            distance += carGraph.getLink(endLink).getLength();
+        }
+
+        NetworkRoute route = RouteUtils.createLinkNetworkRouteImpl(fromActivity.getLinkId(), linkIds, toActivity.getLinkId());
+        route.setTravelTime(travelTime);
+        route.setDistance(distance);
+        leg.setRoute(route);
+        leg.setTravelTime(travelTime);
+        TripStructureUtils.setRoutingMode(leg, TransportMode.car);
+        routedLegs.increment();
+    }
+
+    void logStatistics() {
+        LOG.info(routedLegs.sum() + " car legs routed; " + unroutedLegs.sum() + " car legs without route as their destination is unreachable.");
+    }
+}
@@ -0,0 +1,155 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Stores finished persons of a schedule generation run in a directory, so that an interrupted run can be resumed. Every
+ * checkpoint adds a new chunk file with the persons finished since the previous checkpoint, including their plans and
+ * the attributes drawn for them; persons without valid pattern are stored without plan. A manifest lists the chunks and
+ * the settings of the run, so that a run is only resumed with the same seed and settings. Chunk files and manifest are
+ * written to temporary files first and then moved, so that a crash while writing leaves the last checkpoint intact.
+ *
+ * @author dziemke
+ */
+final class CheckpointStore {
+    private static final Logger LOG = Logger.getLogger(CheckpointStore.class);
+
+    private static final String MANIFEST_FILE = "checkpoint.properties";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String NUMBER_OF_CHUNKS = "numberOfChunks";
+    private static final String NUMBER_OF_PERSONS = "numberOfPersons";
+
+    private final Path directory;
+    private final String fingerprint;
+    private int numberOfChunks = 0;
+    private long numberOfPersons = 0;
+
+    /**
+     * @param fingerprint describes the seed and all settings that influence the generated plans
+     */
+    CheckpointStore(String directory, String fingerprint) {
+        this.directory = Paths.get(directory);
+        this.fingerprint = fingerprint;
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies plans and attributes of all persons stored in previous checkpoints to the persons of the population.
+     *
+     * @return ids of the persons that are already finished
+     */
+    Set<Id<Person>> restore(Population population) {
+        Set<Id<Person>> finishedPersons = new HashSet<>();
+        Path manifestFile = directory.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifestFile)) {
+            LOG.info("No checkpoint found in " + directory + "; starting from scratch.");
+            return finishedPersons;
+        }
+        Properties manifest = new Properties();
+        try (InputStream inputStream = Files.newInputStream(manifestFile)) {
+            manifest.load(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!fingerprint.equals(manifest.getProperty(FINGERPRINT))) {
+            throw new IllegalStateException("Checkpoint in " + directory + " was written with different settings ("
+                    + manifest.getProperty(FINGERPRINT) + ") than the current run (" + fingerprint + ").");
+        }
+        numberOfChunks = Integer.parseInt(manifest.getProperty(NUMBER_OF_CHUNKS));
+
+        Scenario chunkScenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        StreamingPopulationReader reader = new StreamingPopulationReader(chunkScenario);
+        reader.addAlgorithm(storedPerson -> {
+            Person person = population.getPersons().get(storedPerson.getId());
+            if (person == null) {
+                throw new IllegalStateException("Person " + storedPerson.getId() + " of the checkpoint is not in the population.");
+            }
+            for (Map.Entry<String, Object> attribute : storedPerson.getAttributes().getAsMap().entrySet()) {
+                person.getAttributes().putAttribute(attribute.getKey(), attribute.getValue());
+            }
+            for (Plan plan : storedPerson.getPlans()) {
+                person.addPlan(plan);
+            }
+            if (storedPerson.getSelectedPlan() != null) {
+                person.setSelectedPlan(storedPerson.getSelectedPlan());
+            }
+            finishedPersons.add(person.getId());
+        });
+        for (int chunk = 0; chunk < numberOfChunks; chunk++) {
+            reader.readFile(getChunkFile(chunk).toString());
+        }
+        numberOfPersons = finishedPersons.size();
+        LOG.info("Resuming from " + numberOfChunks + " checkpoint chunks with " + numberOfPersons + " finished persons.");
+        return finishedPersons;
+    }
+
+    /**
+     * Writes the given finished persons as a new chunk and adds the chunk to the manifest.
+     */
+    void writeChunk(Collection<Person> persons) {
+        Path chunkFile = getChunkFile(numberOfChunks);
+        // The file name must keep its extension, as the writer derives the compression from it
+        Path temporaryChunkFile = directory.resolve("tmp-" + chunkFile.getFileName());
+        StreamingPopulationWriter writer = new StreamingPopulationWriter();
+        writer.startStreaming(temporaryChunkFile.toString());
+        for (Person person : persons) {
+            writer.run(person);
+        }
+        writer.closeStreaming();
+        move(temporaryChunkFile, chunkFile);
+
+        numberOfChunks++;
+        numberOfPersons += persons.size();
+        Properties manifest = new Properties();
+        manifest.setProperty(FINGERPRINT, fingerprint);
+        manifest.setProperty(NUMBER_OF_CHUNKS, Integer.toString(numberOfChunks));
+        manifest.setProperty(NUMBER_OF_PERSONS, Long.toString(numberOfPersons));
+        Path temporaryManifestFile = directory.resolve(MANIFEST_FILE + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporaryManifestFile)) {
+            manifest.store(outputStream, "actitopp schedule generation checkpoint");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        move(temporaryManifestFile, directory.resolve(MANIFEST_FILE));
+        LOG.info("Checkpoint " + numberOfChunks + " written; " + numberOfPersons + " persons finished.");
+    }
+
+    private Path getChunkFile(int chunk) {
+        return directory.resolve(String.format("chunk-%05d.xml.gz", chunk));
+    }
+
+    private static void move(Path source, Path target) {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
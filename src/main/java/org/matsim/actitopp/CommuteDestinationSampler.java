@@ -0,0 +1,151 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import org.matsim.counts.MatsimCountsReader;
+import org.matsim.counts.Volume;
+
+import java.util.*;
+
+/**
+ * Draws commute destinations proportionally to the observed commutes from an origin municipality. Stores one alias table
+ * per origin, i.e. memory grows with the number of origin-destination pairs and not with the number of commutes.
+ *
+ * @author dziemke
+ */
+public class CommuteDestinationSampler {
+    private static final Logger LOG = Logger.getLogger(CommuteDestinationSampler.class);
+
+    public static final int NO_DESTINATION = -1;
+
+    private final Map<Integer, OriginCommutes> commutesByOrigin = new HashMap<>();
+    private long fingerprint = 0L; // Sum of the hashes of all origin-destination weights
+
+    private CommuteDestinationSampler() {
+    }
+
+    /**
+     * Reads a {@link CommuteMatrixFile} if the file name ends with {@link CommuteMatrixFile#FILE_EXTENSION}, and commute
+     * counts otherwise. Both result in the same sampler.
+     */
+    public static CommuteDestinationSampler createFromFile(String commutesFile, int beginReprTimePeriod, int endReprTimePeriod) {
+        if (commutesFile.endsWith(CommuteMatrixFile.FILE_EXTENSION)) {
+            return createFromMatrixFile(commutesFile, beginReprTimePeriod, endReprTimePeriod);
+        }
+        return createFromCountsFile(commutesFile, beginReprTimePeriod, endReprTimePeriod);
+    }
+
+    /**
+     * Considers all volumes of the matrix file with beginReprTimePeriod < hour <= endReprTimePeriod, just as
+     * {@link #createFromCountsFile(String, int, int)}.
+     */
+    public static CommuteDestinationSampler createFromMatrixFile(String matrixFile, int beginReprTimePeriod, int endReprTimePeriod) {
+        LOG.info("Start creating commute destination sampler from matrix file.");
+        CommuteMatrixFile matrix = CommuteMatrixFile.open(matrixFile);
+        CommuteDestinationSampler sampler = new CommuteDestinationSampler();
+        for (int originIndex = 0; originIndex < matrix.getNumberOfOrigins(); originIndex++) {
+            Map<Integer, Double> destinationWeights = new TreeMap<>();
+            for (int pair = matrix.getFirstPair(originIndex); pair < matrix.getFirstPair(originIndex + 1); pair++) {
+                double weight = 0.;
+                for (int hour = beginReprTimePeriod + 1; hour <= endReprTimePeriod; hour++) {
+                    // Every started unit counts as one commute
+                    weight += Math.ceil(matrix.getVolume(pair, hour));
+                }
+                if (weight > 0.) {
+                    destinationWeights.put(matrix.getDestination(pair), weight);
+                }
+            }
+            if (!destinationWeights.isEmpty()) {
+                sampler.addOrigin(matrix.getOrigin(originIndex), destinationWeights);
+            }
+        }
+        LOG.info("Commute destination sampler contains " + sampler.commutesByOrigin.size() + " origins.");
+        return sampler;
+    }
+
+    /**
+     * Reads commute counts as created by {@link MunicipalityCommutesParser} and considers all volumes with
+     * beginReprTimePeriod < hour <= endReprTimePeriod.
+     */
+    public static CommuteDestinationSampler createFromCountsFile(String countsFile, int beginReprTimePeriod, int endReprTimePeriod) {
+        LOG.info("Start creating commute destination sampler.");
+        Counts commuteCounts = new Counts();
+        MatsimCountsReader countsReader = new MatsimCountsReader(commuteCounts);
+        countsReader.readFile(countsFile);
+
+        Map<Integer, Map<Integer, Double>> weights = new HashMap<>();
+        for (Object uncastedCount : commuteCounts.getCounts().values()) {
+            Count count = (Count) uncastedCount;
+            String[] from_to = count.getId().toString().split("_");
+            int from = Integer.parseInt(from_to[0]);
+            int to = Integer.parseInt(from_to[1]);
+            for (Object uncastedVolume : count.getVolumes().values()) {
+                Volume volume = (Volume) uncastedVolume;
+                if (beginReprTimePeriod < volume.getHourOfDayStartingWithOne() && volume.getHourOfDayStartingWithOne() <= endReprTimePeriod) {
+                    // Every started unit counts as one commute
+                    double value = Math.ceil(volume.getValue());
+                    if (value > 0.) {
+                        weights.computeIfAbsent(from, k -> new TreeMap<>()).merge(to, value, Double::sum);
+                    }
+                }
+            }
+        }
+
+        return create(weights);
+    }
+
+    /**
+     * @param weights per origin, the weight of every destination; destinations are drawn in the iteration order of the maps
+     */
+    static CommuteDestinationSampler create(Map<Integer, Map<Integer, Double>> weights) {
+        CommuteDestinationSampler sampler = new CommuteDestinationSampler();
+        for (Map.Entry<Integer, Map<Integer, Double>> entry : weights.entrySet()) {
+            sampler.addOrigin(entry.getKey(), entry.getValue());
+        }
+        LOG.info("Commute destination sampler contains " + sampler.commutesByOrigin.size() + " origins.");
+        return sampler;
+    }
+
+    private void addOrigin(int origin, Map<Integer, Double> destinationWeights) {
+        int[] destinations = new int[destinationWeights.size()];
+        double[] weights = new double[destinationWeights.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Double> entry : destinationWeights.entrySet()) {
+            destinations[i] = entry.getKey();
+            weights[i] = entry.getValue();
+            long hash = ActiToppUtils.combine(origin, entry.getKey());
+            fingerprint += ActiToppUtils.combine(hash, Double.doubleToLongBits(entry.getValue()));
+            i++;
+        }
+        commutesByOrigin.put(origin, new OriginCommutes(destinations, new AliasTable(weights)));
+    }
+
+    /**
+     * @return a destination municipality id, or {@link #NO_DESTINATION} if no commutes from the origin were observed
+     */
+    public int sampleDestination(int origin, Random random) {
+        OriginCommutes originCommutes = commutesByOrigin.get(origin);
+        if (originCommutes == null) {
+            return NO_DESTINATION;
+        }
+        return originCommutes.destinations[originCommutes.aliasTable.sample(random)];
+    }
+
+    /**
+     * @return a hash of all commutes; it changes as soon as a weight changes
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    private static final class OriginCommutes {
+        private final int[] destinations;
+        private final AliasTable aliasTable;
+
+        private OriginCommutes(int[] destinations, AliasTable aliasTable) {
+            this.destinations = destinations;
+            this.aliasTable = aliasTable;
+        }
+    }
+}
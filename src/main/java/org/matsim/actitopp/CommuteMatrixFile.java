@@ -0,0 +1,185 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import org.matsim.counts.MatsimCountsReader;
+import org.matsim.counts.Volume;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary origin-destination commute matrix, read by memory-mapping the file. Pairs are stored sparsely, grouped by origin
+ * (compressed sparse rows), with one slice of volumes per hour of the day, so that reading a time window only touches the
+ * slices of its hours. Layout (big-endian):
+ * <pre>
+ * int magic, int version, int numberOfHours, int numberOfOrigins, int numberOfPairs
+ * int[numberOfOrigins] origins (ascending)
+ * int[numberOfOrigins + 1] offsets of the first pair of every origin
+ * int[numberOfPairs] destinations (ascending per origin)
+ * double[numberOfHours][numberOfPairs] volumes, slice h holding hour h + 1
+ * </pre>
+ * Files are created from commute counts as written by {@link MunicipalityCommutesParser}.
+ *
+ * @author dziemke
+ */
+public final class CommuteMatrixFile {
+    private static final Logger LOG = Logger.getLogger(CommuteMatrixFile.class);
+
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x434f4d4d; // "COMM"
+    private static final int VERSION = 1;
+    private static final int NUMBER_OF_HOURS = 24;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+    private final IntBuffer origins;
+    private final IntBuffer offsets;
+    private final IntBuffer destinations;
+    private final DoubleBuffer volumes;
+    private final int numberOfOrigins;
+    private final int numberOfPairs;
+
+    private CommuteMatrixFile(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION || buffer.getInt(2 * Integer.BYTES) != NUMBER_OF_HOURS) {
+            throw new IllegalArgumentException("Not a commute matrix file of version " + VERSION + ".");
+        }
+        numberOfOrigins = buffer.getInt(3 * Integer.BYTES);
+        numberOfPairs = buffer.getInt(4 * Integer.BYTES);
+        int position = HEADER_BYTES;
+        origins = slice(buffer, position, numberOfOrigins * Integer.BYTES).asIntBuffer();
+        position += numberOfOrigins * Integer.BYTES;
+        offsets = slice(buffer, position, (numberOfOrigins + 1) * Integer.BYTES).asIntBuffer();
+        position += (numberOfOrigins + 1) * Integer.BYTES;
+        destinations = slice(buffer, position, numberOfPairs * Integer.BYTES).asIntBuffer();
+        position += numberOfPairs * Integer.BYTES;
+        volumes = slice(buffer, position, NUMBER_OF_HOURS * numberOfPairs * Double.BYTES).asDoubleBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    public static void main(String[] args) {
+        String countsFile = "../../shared-svn/projects/snf-big-data/data/commute_counts/20161001_zh-metro_2018_10pct.xml.gz";
+        String matrixFile = "../../shared-svn/projects/snf-big-data/data/commute_counts/20161001_zh-metro_2018_10pct.bin";
+        convertCountsFile(countsFile, matrixFile);
+    }
+
+    public static CommuteMatrixFile open(String matrixFile) {
+        try (FileChannel channel = FileChannel.open(Paths.get(matrixFile), StandardOpenOption.READ)) {
+            // The mapping remains valid after the channel is closed
+            return new CommuteMatrixFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Converts commute counts, where every count is an origin-destination pair with the id "from_to", to a matrix file.
+     */
+    public static void convertCountsFile(String countsFile, String matrixFile) {
+        LOG.info("Start converting commute counts " + countsFile + " to " + matrixFile);
+        Counts commuteCounts = new Counts();
+        new MatsimCountsReader(commuteCounts).readFile(countsFile);
+
+        Map<Integer, Map<Integer, double[]>> hourlyVolumes = new TreeMap<>();
+        int numberOfPairs = 0;
+        for (Object uncastedCount : commuteCounts.getCounts().values()) {
+            Count count = (Count) uncastedCount;
+            String[] from_to = count.getId().toString().split("_");
+            int from = Integer.parseInt(from_to[0]);
+            int to = Integer.parseInt(from_to[1]);
+            Map<Integer, double[]> destinationVolumes = hourlyVolumes.computeIfAbsent(from, k -> new TreeMap<>());
+            if (!destinationVolumes.containsKey(to)) {
+                destinationVolumes.put(to, new double[NUMBER_OF_HOURS]);
+                numberOfPairs++;
+            }
+            for (Object uncastedVolume : count.getVolumes().values()) {
+                Volume volume = (Volume) uncastedVolume;
+                destinationVolumes.get(to)[volume.getHourOfDayStartingWithOne() - 1] += volume.getValue();
+            }
+        }
+
+        int[] destinations = new int[numberOfPairs];
+        double[][] volumeSlices = new double[NUMBER_OF_HOURS][numberOfPairs];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(matrixFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(NUMBER_OF_HOURS);
+            out.writeInt(hourlyVolumes.size());
+            out.writeInt(numberOfPairs);
+            for (int origin : hourlyVolumes.keySet()) {
+                out.writeInt(origin);
+            }
+            int pair = 0;
+            out.writeInt(pair);
+            for (Map<Integer, double[]> destinationVolumes : hourlyVolumes.values()) {
+                for (Map.Entry<Integer, double[]> entry : destinationVolumes.entrySet()) {
+                    destinations[pair] = entry.getKey();
+                    for (int hour = 0; hour < NUMBER_OF_HOURS; hour++) {
+                        volumeSlices[hour][pair] = entry.getValue()[hour];
+                    }
+                    pair++;
+                }
+                out.writeInt(pair);
+            }
+            for (int destination : destinations) {
+                out.writeInt(destination);
+            }
+            for (double[] slice : volumeSlices) {
+                for (double volume : slice) {
+                    out.writeDouble(volume);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info("Commute matrix with " + hourlyVolumes.size() + " origins and " + numberOfPairs + " pairs written.");
+    }
+
+    public int getNumberOfOrigins() {
+        return numberOfOrigins;
+    }
+
+    public int getNumberOfPairs() {
+        return numberOfPairs;
+    }
+
+    public int getOrigin(int originIndex) {
+        return origins.get(originIndex);
+    }
+
+    /**
+     * @return index of the first pair of the origin; pairs of an origin run up to the first pair of the next origin
+     */
+    public int getFirstPair(int originIndex) {
+        return offsets.get(originIndex);
+    }
+
+    public int getDestination(int pair) {
+        return destinations.get(pair);
+    }
+
+    /**
+     * @param hourOfDayStartingWithOne as in {@link Volume#getHourOfDayStartingWithOne()}
+     */
+    public double getVolume(int pair, int hourOfDayStartingWithOne) {
+        return volumes.get((hourOfDayStartingWithOne - 1) * numberOfPairs + pair);
+    }
+}
@@ -0,0 +1,293 @@
+package org.matsim.actitopp;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Array-based copy of a network's topology for one-to-all least-cost searches. Nodes and links are addressed by dense
+ * indices; outgoing and incoming links of every node are stored in compressed sparse row layout.
+ *
+ * @author dziemke
+ */
+final class CompactCarGraph {
+    private final Node[] nodes;
+    private final Link[] links;
+    private final Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+    private final Map<Id<Link>, Integer> linkIndices = new HashMap<>();
+
+    private final int[] linkFromNodes;
+    private final int[] linkToNodes;
+    private final double[] linkLengths;
+
+    private final int[] outLinkStarts;
+    private final int[] outLinks;
+    private final int[] inLinkStarts;
+    private final int[] inLinks;
+
+    CompactCarGraph(Network network) {
+        int nodeCount = network.getNodes().size();
+        int linkCount = network.getLinks().size();
+        this.nodes = new Node[nodeCount];
+        this.links = new Link[linkCount];
+        this.linkFromNodes = new int[linkCount];
+        this.linkToNodes = new int[linkCount];
+        this.linkLengths = new double[linkCount];
+
+        int nodeIndex = 0;
+        for (Node node : network.getNodes().values()) {
+            nodes[nodeIndex] = node;
+            nodeIndices.put(node.getId(), nodeIndex);
+            nodeIndex++;
+        }
+
+        this.outLinkStarts = new int[nodeCount + 1];
+        this.inLinkStarts = new int[nodeCount + 1];
+        int linkIndex = 0;
+        for (Link link : network.getLinks().values()) {
+            links[linkIndex] = link;
+            linkIndices.put(link.getId(), linkIndex);
+            linkFromNodes[linkIndex] = nodeIndices.get(link.getFromNode().getId());
+            linkToNodes[linkIndex] = nodeIndices.get(link.getToNode().getId());
+            linkLengths[linkIndex] = link.getLength();
+            outLinkStarts[linkFromNodes[linkIndex] + 1]++;
+            inLinkStarts[linkToNodes[linkIndex] + 1]++;
+            linkIndex++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            outLinkStarts[i + 1] += outLinkStarts[i];
+            inLinkStarts[i + 1] += inLinkStarts[i];
+        }
+
+        this.outLinks = new int[linkCount];
+        this.inLinks = new int[linkCount];
+        int[] outFill = Arrays.copyOf(outLinkStarts, nodeCount);
+        int[] inFill = Arrays.copyOf(inLinkStarts, nodeCount);
+        for (int i = 0; i < linkCount; i++) {
+            outLinks[outFill[linkFromNodes[i]]++] = i;
+            inLinks[inFill[linkToNodes[i]]++] = i;
+        }
+    }
+
+    int getNodeCount() {
+        return nodes.length;
+    }
+
+    int getLinkCount() {
+        return links.length;
+    }
+
+    int getNodeIndex(Node node) {
+        return nodeIndices.get(node.getId());
+    }
+
+    Node getNode(int nodeIndex) {
+        return nodes[nodeIndex];
+    }
+
+    Link getLink(int linkIndex) {
+        return links[linkIndex];
+    }
+
+    int getLinkIndex(Link link) {
+        return getLinkIndex(link.getId());
+    }
+
+    int getLinkIndex(Id<Link> linkId) {
+        return linkIndices.get(linkId);
+    }
+
+    int getLinkFromNode(int linkIndex) {
+        return linkFromNodes[linkIndex];
+    }
+
+    int getLinkToNode(int linkIndex) {
+        return linkToNodes[linkIndex];
+    }
+
+    /**
+     * Computes a least-cost tree rooted at the given node. With reverse = false, the tree contains the paths from the
+     * root to every node; with reverse = true, the paths from every node to the root. Unreachable nodes have cost and
+     * distance {@link Double#POSITIVE_INFINITY} or {@link Float#POSITIVE_INFINITY}, respectively.
+     *
+     * @param linkCosts cost of every link, by link index
+     * @param costs output; accumulated link costs by node index
+     * @param distances output; accumulated link lengths along the least-cost paths by node index
+     */
+    void calcLeastCostTree(int rootNode, boolean reverse, double[] linkCosts, double[] costs, float[] distances) {
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        Arrays.fill(distances, Float.POSITIVE_INFINITY);
+        double[] exactDistances = new double[nodes.length];
+        boolean[] settled = new boolean[nodes.length];
+
+        int[] linkStarts = reverse ? inLinkStarts : outLinkStarts;
+        int[] adjacentLinks = reverse ? inLinks : outLinks;
+        int[] otherEnds = reverse ? linkFromNodes : linkToNodes;
+
+        NodeHeap heap = new NodeHeap(Math.max(16, nodes.length / 4));
+        costs[rootNode] = 0.;
+        heap.add(rootNode, 0.);
+        while (!heap.isEmpty()) {
+            double cost = heap.peekCost();
+            int node = heap.poll();
+            if (settled[node] || cost > costs[node]) {
+                continue; // Outdated heap entry
+            }
+            settled[node] = true;
+            distances[node] = (float) exactDistances[node];
+            for (int i = linkStarts[node]; i < linkStarts[node + 1]; i++) {
+                int link = adjacentLinks[i];
+                int otherEnd = otherEnds[link];
+                double newCost = cost + linkCosts[link];
+                if (newCost < costs[otherEnd]) {
+                    costs[otherEnd] = newCost;
+                    exactDistances[otherEnd] = exactDistances[node] + linkLengths[link];
+                    heap.add(otherEnd, newCost);
+                }
+            }
+        }
+    }
+
+    /**
+     * Point-to-point least-cost search. Keeps its arrays between searches, so that a search only touches the nodes it
+     * visits; not thread-safe, every thread needs its own instance.
+     */
+    final class PathSearch {
+        private final double[] costs = new double[nodes.length];
+        private final int[] predecessorLinks = new int[nodes.length];
+        // A node's cost and predecessor are only valid if its stamp equals the stamp of the current search
+        private final int[] reachedStamps = new int[nodes.length];
+        private final int[] settledStamps = new int[nodes.length];
+        private final NodeHeap heap = new NodeHeap(64);
+        private int stamp = 0;
+
+        /**
+         * @param linkCosts cost of every link, by link index
+         * @return link indices of the least-cost path from fromNode to toNode, or null if toNode cannot be reached
+         */
+        int[] calcLeastCostPath(int fromNode, int toNode, double[] linkCosts) {
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(reachedStamps, 0);
+                Arrays.fill(settledStamps, 0);
+                stamp = 0;
+            }
+            stamp++;
+            heap.clear();
+            costs[fromNode] = 0.;
+            predecessorLinks[fromNode] = -1;
+            reachedStamps[fromNode] = stamp;
+            heap.add(fromNode, 0.);
+            while (!heap.isEmpty()) {
+                double cost = heap.peekCost();
+                int node = heap.poll();
+                if (settledStamps[node] == stamp || cost > costs[node]) {
+                    continue; // Outdated heap entry
+                }
+                settledStamps[node] = stamp;
+                if (node == toNode) {
+                    return collectPath(toNode);
+                }
+                for (int i = outLinkStarts[node]; i < outLinkStarts[node + 1]; i++) {
+                    int link = outLinks[i];
+                    int otherEnd = linkToNodes[link];
+                    double newCost = cost + linkCosts[link];
+                    if (reachedStamps[otherEnd] != stamp || newCost < costs[otherEnd]) {
+                        reachedStamps[otherEnd] = stamp;
+                        costs[otherEnd] = newCost;
+                        predecessorLinks[otherEnd] = link;
+                        heap.add(otherEnd, newCost);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private int[] collectPath(int toNode) {
+            int length = 0;
+            for (int node = toNode; predecessorLinks[node] >= 0; node = linkFromNodes[predecessorLinks[node]]) {
+                length++;
+            }
+            int[] path = new int[length];
+            for (int node = toNode; predecessorLinks[node] >= 0; node = linkFromNodes[predecessorLinks[node]]) {
+                path[--length] = predecessorLinks[node];
+            }
+            return path;
+        }
+    }
+
+    /**
+     * Binary min-heap on primitive arrays; decrease-key is replaced by adding a node again.
+     */
+    private static final class NodeHeap {
+        private int[] heapNodes;
+        private double[] heapCosts;
+        private int size = 0;
+
+        private NodeHeap(int initialCapacity) {
+            this.heapNodes = new int[initialCapacity];
+            this.heapCosts = new double[initialCapacity];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private double peekCost() {
+            return heapCosts[0];
+        }
+
+        private void add(int node, double cost) {
+            if (size == heapNodes.length) {
+                heapNodes = Arrays.copyOf(heapNodes, size * 2);
+                heapCosts = Arrays.copyOf(heapCosts, size * 2);
+            }
+            int position = size++;
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (heapCosts[parent] <= cost) {
+                    break;
+                }
+                heapNodes[position] = heapNodes[parent];
+                heapCosts[position] = heapCosts[parent];
+                position = parent;
+            }
+            heapNodes[position] = node;
+            heapCosts[position] = cost;
+        }
+
+        private int poll() {
+            int result = heapNodes[0];
+            size--;
+            int lastNode = heapNodes[size];
+            double lastCost = heapCosts[size];
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heapCosts[child + 1] < heapCosts[child]) {
+                    child++;
+                }
+                if (lastCost <= heapCosts[child]) {
+                    break;
+                }
+                heapNodes[position] = heapNodes[child];
+                heapCosts[position] = heapCosts[child];
+                position = child;
+            }
+            heapNodes[position] = lastNode;
+            heapCosts[position] = lastCost;
+            return result;
+        }
+    }
+}
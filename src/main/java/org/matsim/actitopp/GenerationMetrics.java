@@ -0,0 +1,159 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of schedule generation and how the time is split across its phases. Phase times are summed
+ * over all threads and exclusive, i.e. a phase nested in another one is only counted once. While running, a line with
+ * persons per second, phase shares and heap use is logged periodically; at the end, all figures can be written as CSV.
+ * Can be updated from several threads.
+ *
+ * @author dziemke
+ */
+final class GenerationMetrics {
+    private static final Logger LOG = Logger.getLogger(GenerationMetrics.class);
+
+    enum Phase {
+        attributeMapping, commuteSampling, nodeSnapping, dijkstra, generateSchedule, polygonSampling, facilitySampling, planBuilding, routing
+    }
+
+    private final LongAdder persons = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] phaseCalls = new LongAdder[Phase.values().length];
+    private final AtomicLong maxUsedHeap = new AtomicLong();
+    private long startNanos;
+    private ScheduledExecutorService reporter;
+    private long lastReportNanos;
+    private long lastReportPersons;
+
+    GenerationMetrics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCalls[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts the clock and logs a report every reportIntervalSeconds until {@link #stop()} is called.
+     *
+     * @param reportIntervalSeconds 0 for no periodic report, only the one at the end
+     */
+    void start(int reportIntervalSeconds) {
+        startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+        if (reportIntervalSeconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "actitopp-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::logReport, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        logReport();
+    }
+
+    /**
+     * Adds the time since startNanos (taken from {@link System#nanoTime()}) to the phase.
+     *
+     * @return the added time, so that a surrounding phase can exclude it
+     */
+    long addSince(Phase phase, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        add(phase, nanos);
+        return nanos;
+    }
+
+    void add(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+        phaseCalls[phase.ordinal()].increment();
+    }
+
+    void addPerson() {
+        persons.increment();
+        sampleUsedHeap();
+    }
+
+    // Cheap compared to generating a person, so the maximum is sampled after every person, also without periodic reports
+    private long sampleUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        if (usedHeap > maxUsedHeap.get()) {
+            maxUsedHeap.accumulateAndGet(usedHeap, Math::max);
+        }
+        return usedHeap;
+    }
+
+    private synchronized void logReport() {
+        long now = System.nanoTime();
+        long currentPersons = persons.sum();
+        double currentRate = (currentPersons - lastReportPersons) / Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        double meanRate = currentPersons / Math.max(1e-9, (now - startNanos) / 1e9);
+        lastReportNanos = now;
+        lastReportPersons = currentPersons;
+
+        long totalPhaseNanos = 0;
+        for (LongAdder nanos : phaseNanos) {
+            totalPhaseNanos += nanos.sum();
+        }
+        StringBuilder phaseShares = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            phaseShares.append(phaseShares.length() == 0 ? "" : ", ").append(phase).append(' ')
+                    .append(String.format(Locale.US, "%.1f%%", share(phaseNanos[phase.ordinal()].sum(), totalPhaseNanos)));
+        }
+
+        long usedHeap = sampleUsedHeap();
+        LOG.info(String.format(Locale.US, "%d persons; %.1f persons/s (mean %.1f); phases: %s; heap %d of %d MB used",
+                currentPersons, currentRate, meanRate, phaseShares, usedHeap >> 20, Runtime.getRuntime().maxMemory() >> 20));
+    }
+
+    /**
+     * Writes one row per phase. The figures of the whole run (persons, wall time, throughput, maximum used heap) are the
+     * same in every row, so that the file is one table.
+     */
+    void writeCsv(String fileName) {
+        double wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        long totalPhaseNanos = 0;
+        for (LongAdder nanos : phaseNanos) {
+            totalPhaseNanos += nanos.sum();
+        }
+        long totalPersons = persons.sum();
+        String runFigures = String.format(Locale.US, "%d;%.3f;%.2f;%d", totalPersons, wallSeconds,
+                totalPersons / Math.max(1e-9, wallSeconds), maxUsedHeap.get() >> 20);
+        try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+            writer.write("phase;calls;seconds;share;meanMicroseconds;persons;wallSeconds;personsPerSecond;maxUsedHeapMB");
+            writer.newLine();
+            for (Phase phase : Phase.values()) {
+                long nanos = phaseNanos[phase.ordinal()].sum();
+                long calls = phaseCalls[phase.ordinal()].sum();
+                writer.write(String.format(Locale.US, "%s;%d;%.3f;%.2f;%.1f;%s", phase, calls, nanos / 1e9,
+                        share(nanos, totalPhaseNanos), calls == 0 ? 0. : nanos / 1e3 / calls, runFigures));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info("Generation metrics written to " + fileName);
+    }
+
+    private static double share(long nanos, long totalNanos) {
+        return totalNanos == 0 ? 0. : 100. * nanos / totalNanos;
+    }
+}
@@ -89,7 +89,7 @@ public class IvtPopulationParser {
 
         IvtPopulationParser ivtPopulationParser = new IvtPopulationParser();
         // ivtPopulationParser.setCantonsIncluded(cantonsIncluded);
-        ivtPopulationParser.setMunicipalitiesIncludedByShpFile(shapeFileWithToBeIncludedMunicipalities, "GMDNR");
+        ivtPopulationParser.setMunicipalitiesIncluded(MunicipalityRegistry.load(shapeFileWithToBeIncludedMunicipalities));
         Scenario scenario = ivtPopulationParser.createScenarioFromIvtInput(inputFile);
 
 
@@ -193,6 +193,12 @@ public class IvtPopulationParser {
         }
     }
 
+    public void setMunicipalitiesIncluded(MunicipalityRegistry municipalityRegistry) {
+        for (int municipalityId : municipalityRegistry.getMunicipalityIds()) {
+            consideredMunicipalities.add(Id.create(municipalityId, ActiToppUtils.Municipality.class));
+        }
+    }
+
     public void setMunicipalitiesIncludedByShpFile(String shapeFile, String municipalityIdentifier) {
         ShapeFileReader shapeFileReader = new ShapeFileReader();
         Collection<SimpleFeature> features = shapeFileReader.readFileAndInitialize(shapeFile);
@@ -72,7 +72,7 @@ public class MunicipalityCommutesParser {
 
         MunicipalityCommutesParser commuteMatrixParser = new MunicipalityCommutesParser(inputFileMunicipalities);
         // commuteMatrixParser.setCantonsIncluded(cantonsIncluded);
-        commuteMatrixParser.setMunicipalitiesIncludedByShpFile(shapeFileWithToBeIncludedMunicipalities, "GMDNR");
+        commuteMatrixParser.setMunicipalitiesIncluded(MunicipalityRegistry.load(shapeFileWithToBeIncludedMunicipalities));
         // Need to be added manually as they are not contained in the shapefile, c.f. 2012-2018_changes.csv
         // 132/133 -> 295; 171/179 -> 297; 174/175 -> 296; 212 -> 298; 217/222 -> 294; 229 -> 298; 4069 -> 4063
         commuteMatrixParser.addIncludedMunicipalities(Arrays.asList(132, 133, 171, 174, 175, 179, 212, 217, 222, 229, 4069));
@@ -210,6 +210,12 @@ public class MunicipalityCommutesParser {
         }
     }
 
+    public void setMunicipalitiesIncluded(MunicipalityRegistry municipalityRegistry) {
+        for (int municipalityId : municipalityRegistry.getMunicipalityIds()) {
+            consideredMunicipalities.add(Id.create(municipalityId, ActiToppUtils.Municipality.class));
+        }
+    }
+
     public void setMunicipalitiesIncludedByShpFile(String shapeFile, String municipalityIdentifier) {
         ShapeFileReader shapeFileReader = new ShapeFileReader();
         Collection<SimpleFeature> features = shapeFileReader.readFileAndInitialize(shapeFile);
@@ -0,0 +1,90 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.router.util.TravelDisutility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Network distances from every node to a set of destination nodes (in practice, the nodes closest to the municipality
+ * centers). For every destination, one reverse least-cost tree is computed when it is first needed; afterwards a distance
+ * is a single array read. Trees of different destinations can be computed concurrently. At most maxResidentTrees trees are
+ * kept; the least recently used one is dropped when the limit is exceeded.
+ *
+ * @author dziemke
+ */
+final class MunicipalityDistanceTable {
+    private static final Logger LOG = Logger.getLogger(MunicipalityDistanceTable.class);
+
+    private final CompactCarGraph graph;
+    private final double[] linkCosts;
+    private volatile int maxResidentTrees;
+    private final AtomicInteger computedTrees = new AtomicInteger();
+
+    private final LinkedHashMap<Integer, FutureTask<float[]>> trees = new LinkedHashMap<Integer, FutureTask<float[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FutureTask<float[]>> eldest) {
+            return size() > maxResidentTrees;
+        }
+    };
+
+    MunicipalityDistanceTable(CompactCarGraph graph, TravelDisutility travelDisutility, int maxResidentTrees) {
+        this.graph = graph;
+        this.maxResidentTrees = maxResidentTrees;
+        this.linkCosts = new double[graph.getLinkCount()];
+        for (int i = 0; i < linkCosts.length; i++) {
+            Link link = graph.getLink(i);
+            linkCosts[i] = travelDisutility.getLinkMinimumTravelDisutility(link);
+        }
+    }
+
+    void setMaxResidentTrees(int maxResidentTrees) {
+        this.maxResidentTrees = maxResidentTrees;
+    }
+
+    /**
+     * @return the network distance in meters along the least-cost path from one node to the other, or
+     * {@link Double#POSITIVE_INFINITY} if there is no such path
+     */
+    double getDistance(int fromNode, int toNode) {
+        return getTree(toNode)[fromNode];
+    }
+
+    private float[] getTree(int rootNode) {
+        FutureTask<float[]> tree;
+        boolean computeHere = false;
+        synchronized (trees) {
+            tree = trees.get(rootNode);
+            if (tree == null) {
+                tree = new FutureTask<>(() -> computeTree(rootNode));
+                trees.put(rootNode, tree);
+                computeHere = true;
+            }
+        }
+        if (computeHere) {
+            // Computed outside the lock so that other threads can compute other trees meanwhile
+            tree.run();
+        }
+        try {
+            return tree.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Could not compute distance tree for node " + graph.getNode(rootNode).getId() + ".", e);
+        }
+    }
+
+    private float[] computeTree(int rootNode) {
+        double[] costs = new double[graph.getNodeCount()];
+        float[] distances = new float[graph.getNodeCount()];
+        graph.calcLeastCostTree(rootNode, true, linkCosts, costs, distances);
+        int count = computedTrees.incrementAndGet();
+        if (count % 100 == 0) {
+            LOG.info(count + " distance trees computed.");
+        }
+        return distances;
+    }
+}
@@ -0,0 +1,82 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.actitopp.IvtPopulationParser.AttributeLabels;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.ActivityOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Draws facilities for an activity type within a municipality, weighted by their capacity for that type, or uniformly
+ * if no capacities are given. The facilities of every municipality are put into an {@link AliasTable} once, so a draw
+ * takes constant time and needs no geometry tests. A facility belongs to the municipality given by its
+ * {@code municipality_id} attribute or, if it has none, to the municipality whose polygon contains it.
+ *
+ * @author dziemke
+ */
+final class MunicipalityFacilitySampler {
+    private static final Logger LOG = Logger.getLogger(MunicipalityFacilitySampler.class);
+
+    private final Map<Integer, MunicipalityFacilities> facilitiesByMunicipality = new HashMap<>();
+
+    MunicipalityFacilitySampler(ActivityFacilities facilities, String activityType, MunicipalityRegistry municipalityRegistry) {
+        Map<Integer, List<ActivityFacility>> facilityLists = new HashMap<>();
+        Map<Integer, List<Double>> weightLists = new HashMap<>();
+        int facilitiesOutside = 0;
+        for (ActivityFacility facility : facilities.getFacilities().values()) {
+            ActivityOption option = facility.getActivityOptions().get(activityType);
+            if (option == null) {
+                continue;
+            }
+            Object municipalityAttribute = facility.getAttributes().getAttribute(AttributeLabels.municipality_id.toString());
+            int municipalityId = municipalityAttribute != null ? Integer.parseInt(municipalityAttribute.toString())
+                    : municipalityRegistry.findMunicipality(facility.getCoord());
+            if (municipalityId == MunicipalityRegistry.NO_MUNICIPALITY) {
+                facilitiesOutside++;
+                continue;
+            }
+            double capacity = option.getCapacity();
+            double weight = capacity > 0. && !Double.isInfinite(capacity) ? capacity : 1.;
+            facilityLists.computeIfAbsent(municipalityId, k -> new ArrayList<>()).add(facility);
+            weightLists.computeIfAbsent(municipalityId, k -> new ArrayList<>()).add(weight);
+        }
+        for (Map.Entry<Integer, List<ActivityFacility>> entry : facilityLists.entrySet()) {
+            List<Double> weightList = weightLists.get(entry.getKey());
+            double[] weights = new double[weightList.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = weightList.get(i);
+            }
+            ActivityFacility[] municipalityFacilities = entry.getValue().toArray(new ActivityFacility[0]);
+            facilitiesByMunicipality.put(entry.getKey(), new MunicipalityFacilities(municipalityFacilities, new AliasTable(weights)));
+        }
+        LOG.info("Facilities for activity type " + activityType + " in " + facilitiesByMunicipality.size() + " municipalities; "
+                + facilitiesOutside + " facilities are outside all municipalities and not used.");
+    }
+
+    /**
+     * @return a facility in the municipality, or null if the municipality has no facility for the activity type
+     */
+    ActivityFacility sampleFacility(int municipalityId, Random random) {
+        MunicipalityFacilities municipalityFacilities = facilitiesByMunicipality.get(municipalityId);
+        if (municipalityFacilities == null) {
+            return null;
+        }
+        return municipalityFacilities.facilities[municipalityFacilities.aliasTable.sample(random)];
+    }
+
+    private static final class MunicipalityFacilities {
+        private final ActivityFacility[] facilities;
+        private final AliasTable aliasTable;
+
+        private MunicipalityFacilities(ActivityFacility[] facilities, AliasTable aliasTable) {
+            this.facilities = facilities;
+            this.aliasTable = aliasTable;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.triangulate.ConformingDelaunayTriangulationBuilder;
+import org.matsim.api.core.v01.Coord;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Draws uniformly distributed random points inside municipality polygons. Every polygon is triangulated once, when it is
+ * first needed, by the first thread that needs it; other threads can triangulate other polygons meanwhile. A draw then
+ * picks a triangle proportionally to its area and a point inside the triangle. Where a geometry cannot be triangulated,
+ * rejection sampling inside the bounding box is used instead.
+ *
+ * @author dziemke
+ */
+final class MunicipalityPointSampler {
+    private static final Logger LOG = Logger.getLogger(MunicipalityPointSampler.class);
+
+    // Triangulations are only accepted if their area deviates less than this share from the polygon area
+    private static final double MAX_RELATIVE_AREA_ERROR = 0.001;
+
+    private final MunicipalityRegistry municipalityRegistry;
+    private final ConcurrentHashMap<Integer, FutureTask<Triangulation>> triangulations = new ConcurrentHashMap<>();
+
+    MunicipalityPointSampler(MunicipalityRegistry municipalityRegistry) {
+        this.municipalityRegistry = municipalityRegistry;
+    }
+
+    Coord samplePoint(int municipalityId, Random random) {
+        Triangulation triangulation = getTriangulation(municipalityId);
+        if (triangulation.cumulativeAreas == null) {
+            return samplePointByRejection(municipalityId, random);
+        }
+        return triangulation.samplePoint(random);
+    }
+
+    private Triangulation getTriangulation(int municipalityId) {
+        FutureTask<Triangulation> triangulation = triangulations.get(municipalityId);
+        if (triangulation == null) {
+            if (!municipalityRegistry.contains(municipalityId)) {
+                throw new IllegalArgumentException("Municipality " + municipalityId + " is not contained in the shapefile.");
+            }
+            FutureTask<Triangulation> newTriangulation = new FutureTask<>(() -> triangulate(municipalityId));
+            triangulation = triangulations.putIfAbsent(municipalityId, newTriangulation);
+            if (triangulation == null) {
+                // Triangulated outside the map, so that threads needing other municipalities are not blocked meanwhile
+                triangulation = newTriangulation;
+                triangulation.run();
+            }
+        }
+        try {
+            return triangulation.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Could not triangulate municipality " + municipalityId + ".", e);
+        }
+    }
+
+    private Coord samplePointByRejection(int municipalityId, Random random) {
+        PreparedGeometry preparedGeometry = municipalityRegistry.getPreparedGeometry(municipalityId);
+        Envelope envelope = preparedGeometry.getGeometry().getEnvelopeInternal();
+        GeometryFactory geometryFactory = preparedGeometry.getGeometry().getFactory();
+        Point point;
+        do {
+            double x = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+            double y = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            point = geometryFactory.createPoint(new Coordinate(x, y));
+        } while (!preparedGeometry.contains(point));
+        return new Coord(point.getX(), point.getY());
+    }
+
+    private Triangulation triangulate(int municipalityId) {
+        Geometry geometry = municipalityRegistry.getGeometry(municipalityId);
+        try {
+            ConformingDelaunayTriangulationBuilder builder = new ConformingDelaunayTriangulationBuilder();
+            builder.setSites(geometry);
+            builder.setConstraints(geometry);
+            Geometry triangles = builder.getTriangles(new GeometryFactory());
+
+            // The triangulation covers the convex hull; keep only the triangles inside the polygon
+            PreparedGeometry preparedGeometry = municipalityRegistry.getPreparedGeometry(municipalityId);
+            double[] vertices = new double[6 * triangles.getNumGeometries()];
+            double[] cumulativeAreas = new double[triangles.getNumGeometries()];
+            int count = 0;
+            double area = 0.;
+            for (int i = 0; i < triangles.getNumGeometries(); i++) {
+                Polygon triangle = (Polygon) triangles.getGeometryN(i);
+                if (!preparedGeometry.contains(triangle.getCentroid())) {
+                    continue;
+                }
+                Coordinate[] corners = triangle.getCoordinates();
+                for (int j = 0; j < 3; j++) {
+                    vertices[6 * count + 2 * j] = corners[j].x;
+                    vertices[6 * count + 2 * j + 1] = corners[j].y;
+                }
+                area += triangle.getArea();
+                cumulativeAreas[count] = area;
+                count++;
+            }
+
+            if (count == 0 || Math.abs(area - geometry.getArea()) > MAX_RELATIVE_AREA_ERROR * geometry.getArea()) {
+                LOG.warn("Triangulation of municipality " + municipalityId + " does not match its area. Use rejection sampling instead.");
+                return new Triangulation(null, null);
+            }
+            return new Triangulation(Arrays.copyOf(vertices, 6 * count), Arrays.copyOf(cumulativeAreas, count));
+        } catch (RuntimeException e) {
+            LOG.warn("Municipality " + municipalityId + " could not be triangulated. Use rejection sampling instead.", e);
+            return new Triangulation(null, null);
+        }
+    }
+
+    private static final class Triangulation {
+        // x and y of the three corners of every triangle, one after the other
+        private final double[] vertices;
+        private final double[] cumulativeAreas;
+
+        private Triangulation(double[] vertices, double[] cumulativeAreas) {
+            this.vertices = vertices;
+            this.cumulativeAreas = cumulativeAreas;
+        }
+
+        private Coord samplePoint(Random random) {
+            double target = random.nextDouble() * cumulativeAreas[cumulativeAreas.length - 1];
+            int triangle = Arrays.binarySearch(cumulativeAreas, target);
+            if (triangle < 0) {
+                triangle = -triangle - 1;
+            }
+            triangle = Math.min(triangle, cumulativeAreas.length - 1);
+
+            // Uniform point in a triangle: P = (1 - sqrt(r1)) A + sqrt(r1) (1 - r2) B + sqrt(r1) r2 C
+            double sqrtR1 = Math.sqrt(random.nextDouble());
+            double r2 = random.nextDouble();
+            double weightA = 1. - sqrtR1;
+            double weightB = sqrtR1 * (1. - r2);
+            double weightC = sqrtR1 * r2;
+            int offset = 6 * triangle;
+            double x = weightA * vertices[offset] + weightB * vertices[offset + 2] + weightC * vertices[offset + 4];
+            double y = weightA * vertices[offset + 1] + weightB * vertices[offset + 3] + weightC * vertices[offset + 5];
+            return new Coord(x, y);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.gis.ShapeFileReader;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Municipalities of a shapefile in compact form: id, center, prepared geometry and canton, held in arrays sorted by id.
+ * Optionally, the data are stored in a binary cache (WKB geometries and an index with ids, cantons, centers and geometry
+ * lengths) after the shapefile was read once, so that later runs do not need to parse the shapefile. The cache is only
+ * used if a cache directory is given by the system property {@value #CACHE_DIRECTORY_PROPERTY} or a cache file is
+ * passed to {@link #load(String, String)}. It is keyed by the path, size and modification time of the shapefile and all
+ * its sidecar files (.dbf, .shx, .prj, .cpg) and rebuilt when any of them changes.
+ *
+ * @author dziemke
+ */
+public final class MunicipalityRegistry {
+    private static final Logger LOG = Logger.getLogger(MunicipalityRegistry.class);
+
+    // Attributes of the swisstopo municipality boundaries (g2g18)
+    private static final String MUNICIPALITY_ID = "GMDNR";
+    private static final String CANTON_ID = "KTNR";
+    private static final String CENTER_EAST = "E_CNTR";
+    private static final String CENTER_NORTH = "N_CNTR";
+
+    static final int NO_CANTON = -1;
+    static final int NO_MUNICIPALITY = -1;
+
+    public static final String CACHE_DIRECTORY_PROPERTY = "actitopp.municipalityCacheDirectory";
+    private static final String CACHE_EXTENSION = ".registry";
+    private static final int CACHE_MAGIC = 0x4d554e49; // "MUNI"
+    private static final int CACHE_VERSION = 2;
+    private static final String[] SHAPEFILE_EXTENSIONS = {".shp", ".dbf", ".shx", ".prj", ".cpg"};
+
+    private final int[] municipalityIds;
+    private final int[] cantonIds;
+    private final double[] centerX;
+    private final double[] centerY;
+    private final Geometry[] geometries;
+    private final PreparedGeometry[] preparedGeometries;
+    private STRtree spatialIndex; // Of geometry indices by envelope; built on first use
+
+    /**
+     * @param municipalityIds in ascending order; the other arrays are in the same order
+     */
+    MunicipalityRegistry(int[] municipalityIds, int[] cantonIds, double[] centerX, double[] centerY, Geometry[] geometries) {
+        this.municipalityIds = municipalityIds;
+        this.cantonIds = cantonIds;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.geometries = geometries;
+        this.preparedGeometries = new PreparedGeometry[geometries.length];
+        for (int i = 0; i < geometries.length; i++) {
+            preparedGeometries[i] = PreparedGeometryFactory.prepare(geometries[i]);
+        }
+    }
+
+    /**
+     * Reads the registry from the shapefile or, if a cache directory is given by the system property
+     * {@value #CACHE_DIRECTORY_PROPERTY}, from the cache in that directory.
+     */
+    public static MunicipalityRegistry load(String shapeFile) {
+        String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        String cacheFile = cacheDirectory == null ? null : new File(cacheDirectory, new File(shapeFile).getName() + CACHE_EXTENSION).getPath();
+        return load(shapeFile, cacheFile);
+    }
+
+    /**
+     * Reads the registry from the cache file if it is up to date, or else from the shapefile, in which case the cache is
+     * (re)written.
+     *
+     * @param cacheFileName null for no cache
+     */
+    public static MunicipalityRegistry load(String shapeFile, String cacheFileName) {
+        if (cacheFileName == null) {
+            return readShapeFile(shapeFile);
+        }
+        File cacheFile = new File(cacheFileName);
+        String sourceKey = createSourceKey(shapeFile);
+        if (cacheFile.exists()) {
+            try {
+                MunicipalityRegistry registry = readCache(cacheFile, sourceKey);
+                if (registry != null) {
+                    LOG.info("Read " + registry.getNumberOfMunicipalities() + " municipalities from cache " + cacheFile);
+                    return registry;
+                }
+                LOG.info("Municipality cache " + cacheFile + " is outdated.");
+            } catch (IOException | ParseException e) {
+                LOG.warn("Municipality cache " + cacheFile + " could not be read; read shapefile instead.", e);
+            }
+        }
+        MunicipalityRegistry registry = readShapeFile(shapeFile);
+        try {
+            registry.writeCache(cacheFile, sourceKey);
+            LOG.info("Municipality cache written to " + cacheFile);
+        } catch (IOException e) {
+            LOG.warn("Municipality cache " + cacheFile + " could not be written.", e);
+        }
+        return registry;
+    }
+
+    // Path, size and modification time of the shapefile and its sidecar files; a missing sidecar file is listed with size -1
+    private static String createSourceKey(String shapeFile) {
+        String path = new File(shapeFile).getAbsolutePath();
+        String basePath = path.toLowerCase().endsWith(".shp") ? path.substring(0, path.length() - 4) : path;
+        StringBuilder sourceKey = new StringBuilder(path);
+        for (String extension : SHAPEFILE_EXTENSIONS) {
+            File sidecarFile = new File(basePath + extension);
+            if (!sidecarFile.exists()) {
+                sidecarFile = new File(basePath + extension.toUpperCase());
+            }
+            sourceKey.append(';').append(extension).append(':')
+                    .append(sidecarFile.exists() ? sidecarFile.length() : -1).append(':').append(sidecarFile.lastModified());
+        }
+        return sourceKey.toString();
+    }
+
+    public static MunicipalityRegistry readShapeFile(String shapeFile) {
+        LOG.info("Start reading municipalities from " + shapeFile);
+        Collection<SimpleFeature> features = ShapeFileReader.getAllFeatures(shapeFile);
+        List<SimpleFeature> sortedFeatures = new ArrayList<>(features);
+        sortedFeatures.sort(Comparator.comparingInt(feature -> Integer.parseInt(feature.getAttribute(MUNICIPALITY_ID).toString())));
+
+        int size = sortedFeatures.size();
+        int[] municipalityIds = new int[size];
+        int[] cantonIds = new int[size];
+        double[] centerX = new double[size];
+        double[] centerY = new double[size];
+        Geometry[] geometries = new Geometry[size];
+        for (int i = 0; i < size; i++) {
+            SimpleFeature feature = sortedFeatures.get(i);
+            municipalityIds[i] = Integer.parseInt(feature.getAttribute(MUNICIPALITY_ID).toString());
+            if (i > 0 && municipalityIds[i] == municipalityIds[i - 1]) {
+                throw new IllegalArgumentException("Municipality " + municipalityIds[i] + " is contained twice in " + shapeFile);
+            }
+            geometries[i] = (Geometry) feature.getDefaultGeometry();
+            Object canton = feature.getAttribute(CANTON_ID);
+            cantonIds[i] = canton == null ? NO_CANTON : Integer.parseInt(canton.toString());
+            Object east = feature.getAttribute(CENTER_EAST);
+            Object north = feature.getAttribute(CENTER_NORTH);
+            if (east != null && north != null) {
+                centerX[i] = Double.parseDouble(east.toString());
+                centerY[i] = Double.parseDouble(north.toString());
+            } else {
+                Point interiorPoint = geometries[i].getInteriorPoint();
+                centerX[i] = interiorPoint.getX();
+                centerY[i] = interiorPoint.getY();
+            }
+        }
+        return new MunicipalityRegistry(municipalityIds, cantonIds, centerX, centerY, geometries);
+    }
+
+    private static MunicipalityRegistry readCache(File cacheFile, String sourceKey) throws IOException, ParseException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION || !in.readUTF().equals(sourceKey)) {
+                return null;
+            }
+            int size = in.readInt();
+            int[] municipalityIds = new int[size];
+            int[] cantonIds = new int[size];
+            double[] centerX = new double[size];
+            double[] centerY = new double[size];
+            int[] geometryLengths = new int[size];
+            for (int i = 0; i < size; i++) {
+                municipalityIds[i] = in.readInt();
+                cantonIds[i] = in.readInt();
+                centerX[i] = in.readDouble();
+                centerY[i] = in.readDouble();
+                geometryLengths[i] = in.readInt();
+            }
+            WKBReader wkbReader = new WKBReader();
+            Geometry[] geometries = new Geometry[size];
+            for (int i = 0; i < size; i++) {
+                byte[] wkb = new byte[geometryLengths[i]];
+                in.readFully(wkb);
+                geometries[i] = wkbReader.read(wkb);
+            }
+            return new MunicipalityRegistry(municipalityIds, cantonIds, centerX, centerY, geometries);
+        }
+    }
+
+    private void writeCache(File cacheFile, String sourceKey) throws IOException {
+        WKBWriter wkbWriter = new WKBWriter();
+        byte[][] wkbs = new byte[geometries.length][];
+        for (int i = 0; i < geometries.length; i++) {
+            wkbs[i] = wkbWriter.write(geometries[i]);
+        }
+        File cacheDirectory = cacheFile.getAbsoluteFile().getParentFile();
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IOException("Could not create directory " + cacheDirectory);
+        }
+        File temporaryFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(sourceKey);
+            out.writeInt(municipalityIds.length);
+            for (int i = 0; i < municipalityIds.length; i++) {
+                out.writeInt(municipalityIds[i]);
+                out.writeInt(cantonIds[i]);
+                out.writeDouble(centerX[i]);
+                out.writeDouble(centerY[i]);
+                out.writeInt(wkbs[i].length);
+            }
+            for (byte[] wkb : wkbs) {
+                out.write(wkb);
+            }
+        }
+        if (!temporaryFile.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!temporaryFile.renameTo(cacheFile)) {
+                throw new IOException("Could not move " + temporaryFile + " to " + cacheFile);
+            }
+        }
+    }
+
+    /**
+     * @return a hash of ids, cantons, centers and boundaries of all municipalities
+     */
+    long createFingerprint() {
+        long fingerprint = 0L;
+        for (int i = 0; i < municipalityIds.length; i++) {
+            fingerprint = ActiToppUtils.combine(fingerprint, municipalityIds[i]);
+            fingerprint = ActiToppUtils.combine(fingerprint, cantonIds[i]);
+            fingerprint = ActiToppUtils.combine(fingerprint, Double.doubleToLongBits(centerX[i]));
+            fingerprint = ActiToppUtils.combine(fingerprint, Double.doubleToLongBits(centerY[i]));
+            fingerprint = ActiToppUtils.combine(fingerprint, Double.doubleToLongBits(geometries[i].getArea()));
+            fingerprint = ActiToppUtils.combine(fingerprint, geometries[i].getNumPoints());
+        }
+        return fingerprint;
+    }
+
+    public int getNumberOfMunicipalities() {
+        return municipalityIds.length;
+    }
+
+    /**
+     * @return the ids of all municipalities in ascending order
+     */
+    public int[] getMunicipalityIds() {
+        return municipalityIds.clone();
+    }
+
+    public boolean contains(int municipalityId) {
+        return Arrays.binarySearch(municipalityIds, municipalityId) >= 0;
+    }
+
+    public Coord getCenter(int municipalityId) {
+        int index = getIndex(municipalityId);
+        return new Coord(centerX[index], centerY[index]);
+    }
+
+    public int getCanton(int municipalityId) {
+        return cantonIds[getIndex(municipalityId)];
+    }
+
+    public Geometry getGeometry(int municipalityId) {
+        return geometries[getIndex(municipalityId)];
+    }
+
+    public PreparedGeometry getPreparedGeometry(int municipalityId) {
+        return preparedGeometries[getIndex(municipalityId)];
+    }
+
+    /**
+     * @return the id of the municipality containing the coordinate, or {@link #NO_MUNICIPALITY} if there is none
+     */
+    public int findMunicipality(Coord coord) {
+        Point point = geometries.length == 0 ? null : geometries[0].getFactory().createPoint(new Coordinate(coord.getX(), coord.getY()));
+        for (Object candidate : getSpatialIndex().query(new Envelope(coord.getX(), coord.getX(), coord.getY(), coord.getY()))) {
+            int index = (Integer) candidate;
+            if (preparedGeometries[index].contains(point)) {
+                return municipalityIds[index];
+            }
+        }
+        return NO_MUNICIPALITY;
+    }
+
+    private synchronized STRtree getSpatialIndex() {
+        if (spatialIndex == null) {
+            STRtree tree = new STRtree();
+            for (int i = 0; i < geometries.length; i++) {
+                tree.insert(geometries[i].getEnvelopeInternal(), i);
+            }
+            tree.build();
+            spatialIndex = tree;
+        }
+        return spatialIndex;
+    }
+
+    private int getIndex(int municipalityId) {
+        int index = Arrays.binarySearch(municipalityIds, municipalityId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Municipality " + municipalityId + " is not contained in the registry.");
+        }
+        return index;
+    }
+}
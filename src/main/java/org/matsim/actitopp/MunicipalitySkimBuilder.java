@@ -0,0 +1,210 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds a {@link MunicipalitySkimMatrix} with one forward least-cost tree per municipality center over the car network;
+ * trees of different origins are computed in parallel. Link travel times are freespeed travel times or, optionally,
+ * congested travel times of a previous run, read from its events or its link statistics. Travel times are taken at the
+ * departure time for the whole path, which is sufficient for a skim.
+ *
+ * @author dziemke
+ */
+public final class MunicipalitySkimBuilder {
+    private static final Logger LOG = Logger.getLogger(MunicipalitySkimBuilder.class);
+
+    private final CompactCarGraph carGraph;
+    private final NetworkNodeSnapper nodeSnapper;
+    private final MunicipalityRegistry municipalityRegistry;
+    private TravelTime travelTime = new FreeSpeedTravelTime();
+    private int numberOfThreads = 1;
+
+    public MunicipalitySkimBuilder(Network carNetwork, MunicipalityRegistry municipalityRegistry) {
+        this.carGraph = new CompactCarGraph(carNetwork);
+        this.nodeSnapper = new NetworkNodeSnapper(carGraph);
+        this.municipalityRegistry = municipalityRegistry;
+    }
+
+    public static void main(String[] args) {
+        String networkFile = "../../shared-svn/projects/snf-big-data/data/scenario/transport_supply/switzerland_network.xml.gz";
+        String municipalitiesShapeFile = "../../shared-svn/projects/snf-big-data/data/original_files/municipalities/2018_boundaries/g2g18.shp";
+        String skimFile = "../../shared-svn/projects/snf-big-data/data/scenario/transport_supply/municipality_skims_car.bin";
+        // For congested travel times of a previous run, read either its events or its link statistics
+        // String eventsFile = "../../shared-svn/projects/snf-big-data/data/scenario/zh-metro_10pct/output/output_events.xml.gz";
+        // String linkStatsFile = "../../shared-svn/projects/snf-big-data/data/scenario/zh-metro_10pct/output/ITERS/it.100/100.linkstats.txt.gz";
+        double departureTime = 8 * 3600.;
+
+        Network network = NetworkUtils.createNetwork();
+        new MatsimNetworkReader(network).readFile(networkFile);
+        Network carNetwork = NetworkUtils.createNetwork();
+        new TransportModeNetworkFilter(network).filter(carNetwork, Collections.singleton(TransportMode.car));
+
+        MunicipalitySkimBuilder skimBuilder = new MunicipalitySkimBuilder(carNetwork, MunicipalityRegistry.load(municipalitiesShapeFile));
+        skimBuilder.setNumberOfThreads(Runtime.getRuntime().availableProcessors());
+        // skimBuilder.setTravelTime(readTravelTimesFromEvents(carNetwork, eventsFile));
+        // skimBuilder.setTravelTime(readTravelTimesFromLinkStats(linkStatsFile));
+        skimBuilder.build(departureTime, skimFile);
+    }
+
+    public void setTravelTime(TravelTime travelTime) {
+        this.travelTime = travelTime;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Computes travel times and distances between all municipality centers for the given departure time and writes them to
+     * the skim file.
+     */
+    public void build(double departureTime, String skimFile) {
+        int[] municipalityIds = municipalityRegistry.getMunicipalityIds();
+        int size = municipalityIds.length;
+        int[] centerNodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            centerNodes[i] = nodeSnapper.snap(municipalityRegistry.getCenter(municipalityIds[i]));
+        }
+        double[] linkTravelTimes = new double[carGraph.getLinkCount()];
+        for (int i = 0; i < linkTravelTimes.length; i++) {
+            linkTravelTimes[i] = travelTime.getLinkTravelTime(carGraph.getLink(i), departureTime, null, null);
+        }
+
+        LOG.info("Start computing skims between " + size + " municipalities with " + numberOfThreads + " thread(s).");
+        float[] travelTimes = new float[size * size];
+        float[] distances = new float[size * size];
+        // Workers pull origins from a shared index; every worker writes its own rows
+        AtomicInteger nextOrigin = new AtomicInteger();
+        AtomicInteger finishedOrigins = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            futures.add(executor.submit(() -> {
+                double[] nodeCosts = new double[carGraph.getNodeCount()];
+                float[] nodeDistances = new float[carGraph.getNodeCount()];
+                int origin;
+                while ((origin = nextOrigin.getAndIncrement()) < size) {
+                    carGraph.calcLeastCostTree(centerNodes[origin], false, linkTravelTimes, nodeCosts, nodeDistances);
+                    for (int destination = 0; destination < size; destination++) {
+                        travelTimes[origin * size + destination] = (float) nodeCosts[centerNodes[destination]];
+                        distances[origin * size + destination] = nodeDistances[centerNodes[destination]];
+                    }
+                    int finished = finishedOrigins.incrementAndGet();
+                    if (finished % 100 == 0) {
+                        LOG.info(finished + " of " + size + " origins computed.");
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException("Skim computation failed.", e);
+        }
+
+        MunicipalitySkimMatrix.write(skimFile, municipalityIds, departureTime, travelTimes, distances);
+        LOG.info("Skims written to " + skimFile);
+    }
+
+    /**
+     * Reads the link travel times of a previous run from its events.
+     */
+    public static TravelTime readTravelTimesFromEvents(Network carNetwork, String eventsFile) {
+        LOG.info("Start reading link travel times from " + eventsFile);
+        TravelTimeCalculator.Builder builder = new TravelTimeCalculator.Builder(carNetwork);
+        builder.configure(new TravelTimeCalculatorConfigGroup());
+        TravelTimeCalculator travelTimeCalculator = builder.build();
+        EventsManager eventsManager = EventsUtils.createEventsManager();
+        eventsManager.addHandler(travelTimeCalculator);
+        eventsManager.initProcessing();
+        new MatsimEventsReader(eventsManager).readFile(eventsFile);
+        eventsManager.finishProcessing();
+        return travelTimeCalculator.getLinkTravelTimes();
+    }
+
+    /**
+     * Reads the hourly average link travel times of a previous run from a linkstats file, as written by MATSim every few
+     * iterations. Links or hours without a value get their freespeed travel time.
+     */
+    public static TravelTime readTravelTimesFromLinkStats(String linkStatsFile) {
+        LOG.info("Start reading link travel times from " + linkStatsFile);
+        Map<Id<Link>, double[]> hourlyTravelTimes = new HashMap<>();
+        try (BufferedReader reader = IOUtils.getBufferedReader(linkStatsFile)) {
+            String[] header = reader.readLine().split("\t");
+            int[] hourColumns = new int[24];
+            for (int hour = 0; hour < 24; hour++) {
+                hourColumns[hour] = indexOf(header, "TRAVELTIME" + hour + "-" + (hour + 1) + "avg");
+            }
+            int linkColumn = indexOf(header, "LINK");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split("\t");
+                double[] travelTimes = new double[24];
+                for (int hour = 0; hour < 24; hour++) {
+                    travelTimes[hour] = Double.parseDouble(values[hourColumns[hour]]);
+                }
+                hourlyTravelTimes.put(Id.createLinkId(values[linkColumn]), travelTimes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info("Travel times of " + hourlyTravelTimes.size() + " links read.");
+
+        TravelTime freeSpeed = new FreeSpeedTravelTime();
+        return new TravelTime() {
+            @Override
+            public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+                double[] travelTimes = hourlyTravelTimes.get(link.getId());
+                int hour = Math.min(23, Math.max(0, (int) (time / 3600.)));
+                if (travelTimes == null || !(travelTimes[hour] > 0.)) {
+                    return freeSpeed.getLinkTravelTime(link, time, person, vehicle);
+                }
+                return travelTimes[hour];
+            }
+        };
+    }
+
+    private static int indexOf(String[] header, String column) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + column + " not found in link statistics.");
+    }
+}
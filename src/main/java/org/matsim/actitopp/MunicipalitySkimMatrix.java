@@ -0,0 +1,155 @@
+package org.matsim.actitopp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Car travel times and distances between municipality centers, read by memory-mapping the file. Matrices are dense and
+ * stored row by row, one row per origin. Layout (big-endian):
+ * <pre>
+ * int magic, int version, int numberOfMunicipalities, double departureTime
+ * int[numberOfMunicipalities] municipality ids (ascending)
+ * float[numberOfMunicipalities][numberOfMunicipalities] travel times in seconds
+ * float[numberOfMunicipalities][numberOfMunicipalities] distances in meters
+ * </pre>
+ * Pairs without a connection have travel time and distance {@link Float#POSITIVE_INFINITY}. Files are created by
+ * {@link MunicipalitySkimBuilder}.
+ *
+ * @author dziemke
+ */
+public final class MunicipalitySkimMatrix {
+
+    private static final int MAGIC = 0x534b494d; // "SKIM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 3 * Integer.BYTES + Double.BYTES;
+
+    private final int[] municipalityIds;
+    private final double departureTime;
+    private final FloatBuffer travelTimes;
+    private final FloatBuffer distances;
+
+    private MunicipalitySkimMatrix(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IllegalArgumentException("Not a skim matrix file of version " + VERSION + ".");
+        }
+        int size = buffer.getInt(2 * Integer.BYTES);
+        departureTime = buffer.getDouble(3 * Integer.BYTES);
+        municipalityIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            municipalityIds[i] = buffer.getInt(HEADER_BYTES + i * Integer.BYTES);
+        }
+        int position = HEADER_BYTES + size * Integer.BYTES;
+        int matrixBytes = size * size * Float.BYTES;
+        travelTimes = slice(buffer, position, matrixBytes).asFloatBuffer();
+        distances = slice(buffer, position + matrixBytes, matrixBytes).asFloatBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    public static MunicipalitySkimMatrix open(String skimFile) {
+        try (FileChannel channel = FileChannel.open(Paths.get(skimFile), StandardOpenOption.READ)) {
+            // The mapping remains valid after the channel is closed
+            return new MunicipalitySkimMatrix(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param municipalityIds in ascending order
+     * @param travelTimes row by row, one row per origin, in the order of municipalityIds
+     * @param distances in the same order as travelTimes
+     */
+    static void write(String skimFile, int[] municipalityIds, double departureTime, float[] travelTimes, float[] distances) {
+        File temporaryFile = new File(skimFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(municipalityIds.length);
+            out.writeDouble(departureTime);
+            for (int municipalityId : municipalityIds) {
+                out.writeInt(municipalityId);
+            }
+            for (float travelTime : travelTimes) {
+                out.writeFloat(travelTime);
+            }
+            for (float distance : distances) {
+                out.writeFloat(distance);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        File file = new File(skimFile);
+        if (!temporaryFile.renameTo(file)) {
+            file.delete();
+            if (!temporaryFile.renameTo(file)) {
+                throw new UncheckedIOException(new IOException("Could not move " + temporaryFile + " to " + file));
+            }
+        }
+    }
+
+    public int getNumberOfMunicipalities() {
+        return municipalityIds.length;
+    }
+
+    /**
+     * @return the ids of all municipalities in ascending order
+     */
+    public int[] getMunicipalityIds() {
+        return municipalityIds.clone();
+    }
+
+    public boolean contains(int municipalityId) {
+        return Arrays.binarySearch(municipalityIds, municipalityId) >= 0;
+    }
+
+    /**
+     * @return the time of day in seconds for which the travel times were computed
+     */
+    public double getDepartureTime() {
+        return departureTime;
+    }
+
+    /**
+     * @return the car travel time in seconds from the center of one municipality to the center of the other, or
+     * {@link Double#POSITIVE_INFINITY} if there is no connection
+     */
+    public double getTravelTime(int fromMunicipalityId, int toMunicipalityId) {
+        return travelTimes.get(getEntry(fromMunicipalityId, toMunicipalityId));
+    }
+
+    /**
+     * @return the network distance in meters along the fastest path from the center of one municipality to the center of
+     * the other, or {@link Double#POSITIVE_INFINITY} if there is no connection
+     */
+    public double getDistance(int fromMunicipalityId, int toMunicipalityId) {
+        return distances.get(getEntry(fromMunicipalityId, toMunicipalityId));
+    }
+
+    private int getEntry(int fromMunicipalityId, int toMunicipalityId) {
+        return getIndex(fromMunicipalityId) * municipalityIds.length + getIndex(toMunicipalityId);
+    }
+
+    private int getIndex(int municipalityId) {
+        int index = Arrays.binarySearch(municipalityIds, municipalityId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Municipality " + municipalityId + " is not contained in the skim matrix.");
+        }
+        return index;
+    }
+}
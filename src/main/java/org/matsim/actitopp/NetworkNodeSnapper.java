@@ -0,0 +1,103 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.facilities.ActivityFacility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Snaps coordinates to the closest node of a {@link CompactCarGraph}. The spatial index is built once. Facilities can be
+ * snapped in advance with {@link #snapAll(Collection, int)}, which pays off when the members of a household are processed
+ * one by one, as they share the same home facility; their nodes are then kept in an array indexed by the index of the
+ * facility id.
+ *
+ * @author dziemke
+ */
+final class NetworkNodeSnapper {
+    private static final Logger LOG = Logger.getLogger(NetworkNodeSnapper.class);
+
+    private static final int NO_NODE = -1;
+
+    private final QuadTree<Integer> nodeTree;
+    // NO_NODE for facilities that were not snapped in advance
+    private int[] facilityNodes = new int[0];
+
+    NetworkNodeSnapper(CompactCarGraph graph) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < graph.getNodeCount(); i++) {
+            Coord coord = graph.getNode(i).getCoord();
+            minX = Math.min(minX, coord.getX());
+            minY = Math.min(minY, coord.getY());
+            maxX = Math.max(maxX, coord.getX());
+            maxY = Math.max(maxY, coord.getY());
+        }
+        this.nodeTree = new QuadTree<>(minX, minY, maxX, maxY);
+        for (int i = 0; i < graph.getNodeCount(); i++) {
+            Node node = graph.getNode(i);
+            nodeTree.put(node.getCoord().getX(), node.getCoord().getY(), i);
+        }
+    }
+
+    /**
+     * @return the index of the node closest to the coordinate
+     */
+    int snap(Coord coord) {
+        return nodeTree.getClosest(coord.getX(), coord.getY());
+    }
+
+    /**
+     * @return the index of the node closest to the facility; taken from {@link #snapAll(Collection, int)} if the facility
+     * was snapped in advance
+     */
+    int snap(ActivityFacility facility) {
+        int idIndex = facility.getId().index();
+        if (idIndex < facilityNodes.length && facilityNodes[idIndex] != NO_NODE) {
+            return facilityNodes[idIndex];
+        }
+        return snap(facility.getCoord());
+    }
+
+    /**
+     * Snaps all given facilities in advance, using the given number of threads. Must be called before the snapper is
+     * used by other threads.
+     */
+    void snapAll(Collection<? extends ActivityFacility> facilities, int numberOfThreads) {
+        LOG.info("Start snapping " + facilities.size() + " facilities to the network.");
+        List<ActivityFacility> facilityList = new ArrayList<>(facilities);
+        int[] nodes = new int[Id.getNumberOfIds(ActivityFacility.class)];
+        Arrays.fill(nodes, NO_NODE);
+        int threads = Math.max(1, numberOfThreads);
+        int chunkSize = (facilityList.size() + threads - 1) / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start = 0; start < facilityList.size(); start += chunkSize) {
+            List<ActivityFacility> chunk = facilityList.subList(start, Math.min(start + chunkSize, facilityList.size()));
+            futures.add(executor.submit(() -> {
+                for (ActivityFacility facility : chunk) {
+                    nodes[facility.getId().index()] = snap(facility.getCoord());
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException("Snapping facilities failed.", e);
+        }
+        facilityNodes = nodes;
+    }
+}
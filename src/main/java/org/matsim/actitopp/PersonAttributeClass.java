@@ -0,0 +1,119 @@
+package org.matsim.actitopp;
+
+import java.util.Arrays;
+
+/**
+ * Groups persons whose actitopp inputs are equal after banding age and commuting distance.
+ *
+ * @author dziemke
+ */
+final class PersonAttributeClass {
+    // Age groups as used in actitopp's model files
+    private static final double[] AGE_BAND_UPPER_BOUNDS = {17., 25., 35., 50., 60., 70.};
+
+    private static final double MIN_AGE = 10.;
+    private static final double MAX_AGE = 85.;
+
+    static final double[] DEFAULT_DISTANCE_BAND_UPPER_BOUNDS_KM = {1., 2., 5., 10., 20., 50.};
+
+    private final int childrenFrom0To10;
+    private final int childrenUnder18;
+    private final int ageBand;
+    private final int employment;
+    private final int gender;
+    private final int areaType;
+    private final int numberOfCarsInHousehold;
+    private final int distanceBand;
+
+    private PersonAttributeClass(int childrenFrom0To10, int childrenUnder18, int ageBand, int employment, int gender,
+                                 int areaType, int numberOfCarsInHousehold, int distanceBand) {
+        this.childrenFrom0To10 = childrenFrom0To10;
+        this.childrenUnder18 = childrenUnder18;
+        this.ageBand = ageBand;
+        this.employment = employment;
+        this.gender = gender;
+        this.areaType = areaType;
+        this.numberOfCarsInHousehold = numberOfCarsInHousehold;
+        this.distanceBand = distanceBand;
+    }
+
+    static PersonAttributeClass of(ActitoppPersonInput input, double[] distanceBandUpperBoundsKm) {
+        // At most one of the two distances is non-zero
+        double commutingDistance = Math.max(input.getCommutingDistanceToWork(), input.getCommutingDistanceToEducation());
+        return new PersonAttributeClass(input.getChildrenFrom0To10(), input.getChildrenUnder18(),
+                getBand(input.getAge(), AGE_BAND_UPPER_BOUNDS), input.getEmployment(), input.getGender(), input.getAreaType(),
+                input.getNumberOfCarsInHousehold(), commutingDistance > 0. ? getBand(commutingDistance, distanceBandUpperBoundsKm) + 1 : 0);
+    }
+
+    /**
+     * Creates the input of a typical member of this class, with age and commuting distance at the centers of their bands.
+     */
+    ActitoppPersonInput createRepresentativeInput(double[] distanceBandUpperBoundsKm) {
+        int age = (int) Math.round(getBandCenter(ageBand, AGE_BAND_UPPER_BOUNDS, MIN_AGE, MAX_AGE));
+        double commutingDistance = 0.;
+        if (distanceBand > 0) {
+            double maxDistance = 2. * distanceBandUpperBoundsKm[distanceBandUpperBoundsKm.length - 1];
+            commutingDistance = getBandCenter(distanceBand - 1, distanceBandUpperBoundsKm, 0., maxDistance);
+        }
+        // 4 = student (school or university); all other employment classes with a commute go to work
+        double commutingDistanceToWork = employment == 4 ? 0. : commutingDistance;
+        double commutingDistanceToEducation = employment == 4 ? commutingDistance : 0.;
+        return new ActitoppPersonInput(0, childrenFrom0To10, childrenUnder18, age, employment, gender, areaType,
+                numberOfCarsInHousehold, commutingDistanceToWork, commutingDistanceToEducation);
+    }
+
+    private static double getBandCenter(int band, double[] upperBounds, double min, double max) {
+        double lower = band == 0 ? min : upperBounds[band - 1];
+        double upper = band < upperBounds.length ? upperBounds[band] : Math.max(max, lower);
+        return (lower + upper) / 2.;
+    }
+
+    private static int getBand(double value, double[] upperBounds) {
+        int band = 0;
+        while (band < upperBounds.length && value > upperBounds[band]) {
+            band++;
+        }
+        return band;
+    }
+
+    /**
+     * @return a 64-bit hash of all fields, e.g. to seed random numbers per class; unlike {@link #hashCode()}, collisions
+     * of the classes that occur are practically impossible
+     */
+    long createKey() {
+        long key = 0L;
+        for (int value : new int[]{childrenFrom0To10, childrenUnder18, ageBand, employment, gender, areaType,
+                numberOfCarsInHousehold, distanceBand}) {
+            key = ActiToppUtils.combine(key, value);
+        }
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PersonAttributeClass)) {
+            return false;
+        }
+        PersonAttributeClass other = (PersonAttributeClass) o;
+        return childrenFrom0To10 == other.childrenFrom0To10 && childrenUnder18 == other.childrenUnder18
+                && ageBand == other.ageBand && employment == other.employment && gender == other.gender
+                && areaType == other.areaType && numberOfCarsInHousehold == other.numberOfCarsInHousehold
+                && distanceBand == other.distanceBand;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new int[]{childrenFrom0To10, childrenUnder18, ageBand, employment, gender, areaType,
+                numberOfCarsInHousehold, distanceBand});
+    }
+
+    @Override
+    public String toString() {
+        return "children0to10=" + childrenFrom0To10 + ";childrenUnder18=" + childrenUnder18 + ";ageBand=" + ageBand
+                + ";employment=" + employment + ";gender=" + gender + ";areaType=" + areaType
+                + ";cars=" + numberOfCarsInHousehold + ";distanceBand=" + distanceBand;
+    }
+}
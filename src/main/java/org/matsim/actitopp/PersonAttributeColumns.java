@@ -0,0 +1,240 @@
+package org.matsim.actitopp;
+
+import org.matsim.actitopp.IvtPopulationParser.AttributeLabels;
+import org.matsim.actitopp.IvtPopulationParser.Gender;
+import org.matsim.actitopp.IvtPopulationParser.MunicipalityType;
+import org.matsim.actitopp.RunActitoppForIvtPopulation.ActitoppAttributeLabels;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The person attributes needed for schedule generation, decoded once from the string-keyed MATSim attributes of persons
+ * created by {@link IvtPopulationParser} and stored in primitive arrays indexed by row. Rows are in the order of the
+ * persons passed on creation. Gender and municipality type are stored as enum ordinals.
+ * <p>
+ * The attributes drawn for actitopp (employment, gender and area type classes and the work or education municipality)
+ * are kept in columns as well while a person is processed, and copied to the MATSim attributes of the person once at the
+ * end. A row must only be changed by one thread at a time.
+ *
+ * @author dziemke
+ */
+final class PersonAttributeColumns {
+
+    private static final Gender[] GENDERS = Gender.values();
+    private static final MunicipalityType[] MUNICIPALITY_TYPES = MunicipalityType.values();
+
+    private final int[] personIndices;
+    private final boolean[] childrenFrom0To10;
+    private final boolean[] childrenUnder18;
+    private final short[] ages;
+    private final boolean[] employed;
+    private final byte[] genders;
+    private final byte[] municipalityTypes;
+    private final byte[] numberOfCars;
+    private final int[] municipalityIds;
+    private final ActivityFacility[] homeFacilities;
+    private final byte[] employmentClasses;
+    private final byte[] genderClasses;
+    private final byte[] areaTypes;
+    private final int[] workEduMunicipalityIds;
+
+    private PersonAttributeColumns(int size) {
+        personIndices = new int[size];
+        childrenFrom0To10 = new boolean[size];
+        childrenUnder18 = new boolean[size];
+        ages = new short[size];
+        employed = new boolean[size];
+        genders = new byte[size];
+        municipalityTypes = new byte[size];
+        numberOfCars = new byte[size];
+        municipalityIds = new int[size];
+        homeFacilities = new ActivityFacility[size];
+        employmentClasses = new byte[size];
+        genderClasses = new byte[size];
+        areaTypes = new byte[size];
+        workEduMunicipalityIds = new int[size];
+        Arrays.fill(workEduMunicipalityIds, MunicipalityRegistry.NO_MUNICIPALITY);
+    }
+
+    static PersonAttributeColumns create(Scenario scenario) {
+        return create(new ArrayList<>(scenario.getPopulation().getPersons().values()), scenario.getActivityFacilities());
+    }
+
+    /**
+     * Creates columns with a single row, for processing persons one by one.
+     */
+    static PersonAttributeColumns create(Person person, ActivityFacilities facilities) {
+        return create(Collections.singletonList(person), facilities);
+    }
+
+    static PersonAttributeColumns create(List<Person> persons, ActivityFacilities facilities) {
+        PersonAttributeColumns columns = new PersonAttributeColumns(persons.size());
+        for (int row = 0; row < persons.size(); row++) {
+            Person person = persons.get(row);
+            Attributes attr = person.getAttributes();
+            columns.personIndices[row] = Integer.parseInt(person.getId().toString());
+            columns.childrenFrom0To10[row] = (boolean) attr.getAttribute(AttributeLabels.children_0_10.toString());
+            columns.childrenUnder18[row] = (boolean) attr.getAttribute(AttributeLabels.children_0_18.toString());
+            columns.ages[row] = (short) (int) attr.getAttribute(AttributeLabels.age.toString());
+            columns.employed[row] = (boolean) attr.getAttribute(AttributeLabels.employed.toString());
+            columns.genders[row] = (byte) Gender.valueOf((String) attr.getAttribute(AttributeLabels.gender.toString())).ordinal();
+            columns.municipalityTypes[row] = (byte) MunicipalityType.valueOf((String) attr.getAttribute(AttributeLabels.municipality_type.toString())).ordinal();
+            columns.numberOfCars[row] = (byte) (int) attr.getAttribute(AttributeLabels.number_of_cars.toString());
+            columns.municipalityIds[row] = (int) attr.getAttribute(AttributeLabels.municipality_id.toString());
+            Id<ActivityFacility> facilityId = Id.create(attr.getAttribute(AttributeLabels.facility_id.toString()).toString(), ActivityFacility.class);
+            columns.homeFacilities[row] = facilities.getFacilities().get(facilityId);
+            if (columns.homeFacilities[row] == null) {
+                throw new IllegalArgumentException("Home facility " + facilityId + " of person " + person.getId() + " does not exist.");
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return all rows, ordered by home municipality, then by home facility and then by person, so that the members of a
+     * household are adjacent and households of the same municipality follow each other
+     */
+    int[] createHouseholdOrder() {
+        Integer[] rows = new Integer[size()];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = row;
+        }
+        Arrays.sort(rows, Comparator.<Integer>comparingInt(row -> municipalityIds[row])
+                .thenComparing(row -> homeFacilities[row].getId())
+                .thenComparingInt(row -> personIndices[row]));
+        int[] order = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            order[i] = rows[i];
+        }
+        return order;
+    }
+
+    /**
+     * @return new columns holding the given rows of these columns, in the given order
+     */
+    PersonAttributeColumns select(int[] rows) {
+        PersonAttributeColumns columns = new PersonAttributeColumns(rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            int row = rows[i];
+            columns.personIndices[i] = personIndices[row];
+            columns.childrenFrom0To10[i] = childrenFrom0To10[row];
+            columns.childrenUnder18[i] = childrenUnder18[row];
+            columns.ages[i] = ages[row];
+            columns.employed[i] = employed[row];
+            columns.genders[i] = genders[row];
+            columns.municipalityTypes[i] = municipalityTypes[row];
+            columns.numberOfCars[i] = numberOfCars[row];
+            columns.municipalityIds[i] = municipalityIds[row];
+            columns.homeFacilities[i] = homeFacilities[row];
+            columns.employmentClasses[i] = employmentClasses[row];
+            columns.genderClasses[i] = genderClasses[row];
+            columns.areaTypes[i] = areaTypes[row];
+            columns.workEduMunicipalityIds[i] = workEduMunicipalityIds[row];
+        }
+        return columns;
+    }
+
+    /**
+     * Households are runs of adjacent rows with the same home facility, as created by {@link #createHouseholdOrder()}.
+     *
+     * @return the first row of every household, followed by {@link #size()}
+     */
+    int[] getHouseholdStarts() {
+        int[] starts = new int[size() + 1];
+        int numberOfHouseholds = 0;
+        for (int row = 0; row < size(); row++) {
+            if (row == 0 || homeFacilities[row] != homeFacilities[row - 1]) {
+                starts[numberOfHouseholds++] = row;
+            }
+        }
+        starts[numberOfHouseholds] = size();
+        return Arrays.copyOf(starts, numberOfHouseholds + 1);
+    }
+
+    int size() {
+        return personIndices.length;
+    }
+
+    int getPersonIndex(int row) {
+        return personIndices[row];
+    }
+
+    boolean hasChildrenFrom0To10(int row) {
+        return childrenFrom0To10[row];
+    }
+
+    boolean hasChildrenUnder18(int row) {
+        return childrenUnder18[row];
+    }
+
+    int getAge(int row) {
+        return ages[row];
+    }
+
+    boolean isEmployed(int row) {
+        return employed[row];
+    }
+
+    Gender getGender(int row) {
+        return GENDERS[genders[row]];
+    }
+
+    MunicipalityType getMunicipalityType(int row) {
+        return MUNICIPALITY_TYPES[municipalityTypes[row]];
+    }
+
+    int getNumberOfCars(int row) {
+        return numberOfCars[row];
+    }
+
+    int getMunicipalityId(int row) {
+        return municipalityIds[row];
+    }
+
+    ActivityFacility getHomeFacility(int row) {
+        return homeFacilities[row];
+    }
+
+    /**
+     * Stores the attributes drawn for actitopp, replacing those of an earlier draw.
+     *
+     * @param workEduMunicipality {@link MunicipalityRegistry#NO_MUNICIPALITY} if the person does not commute
+     */
+    void setDrawnAttributes(int row, int employmentClass, int genderClass, int areaType, int workEduMunicipality) {
+        employmentClasses[row] = (byte) employmentClass;
+        genderClasses[row] = (byte) genderClass;
+        areaTypes[row] = (byte) areaType;
+        workEduMunicipalityIds[row] = workEduMunicipality;
+    }
+
+    /**
+     * @return the municipality of work or education, or {@link MunicipalityRegistry#NO_MUNICIPALITY}
+     */
+    int getWorkEduMunicipality(int row) {
+        return workEduMunicipalityIds[row];
+    }
+
+    /**
+     * Copies the drawn attributes to the MATSim attributes of the person in the row.
+     */
+    void copyDrawnAttributes(int row, Attributes attributes) {
+        attributes.putAttribute(ActitoppAttributeLabels.actitopp_employment_class.toString(), (int) employmentClasses[row]);
+        attributes.putAttribute(ActitoppAttributeLabels.actitopp_gender.toString(), (int) genderClasses[row]);
+        attributes.putAttribute(ActitoppAttributeLabels.actitopp_area_type.toString(), (int) areaTypes[row]);
+        if (workEduMunicipalityIds[row] == MunicipalityRegistry.NO_MUNICIPALITY) {
+            attributes.removeAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString());
+        } else {
+            attributes.putAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString(), workEduMunicipalityIds[row]);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.matsim.actitopp;
+
+import org.matsim.actitopp.RunActitoppForIvtPopulation.ShardKey;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.Comparator;
+
+/**
+ * One of several disjoint parts of a population that can be processed by separate JVMs. Whether a person belongs to a
+ * shard only depends on the person itself, and persons of a shard are written in {@link #PERSON_ORDER}, so that shard
+ * outputs can be combined by {@link ShardMerger}. As every person draws from its own random streams, a person's plan
+ * does not depend on the number of shards.
+ *
+ * @author dziemke
+ */
+final class PopulationShard {
+
+    static final Comparator<Person> PERSON_ORDER = Comparator.comparing(person -> person.getId().toString());
+
+    private final ShardKey shardKey;
+    private final int shardIndex;
+    private final int numberOfShards;
+
+    PopulationShard(ShardKey shardKey, int shardIndex, int numberOfShards) {
+        if (numberOfShards < 1 || shardIndex < 0 || shardIndex >= numberOfShards) {
+            throw new IllegalArgumentException("Shard " + shardIndex + " of " + numberOfShards + " does not exist.");
+        }
+        this.shardKey = shardKey;
+        this.shardIndex = shardIndex;
+        this.numberOfShards = numberOfShards;
+    }
+
+    boolean contains(Person person) {
+        long key;
+        if (shardKey == ShardKey.person_id_hash) {
+            key = ActiToppUtils.createSeed(0, person.getId(), 0);
+        } else {
+            Object value = person.getAttributes().getAttribute(shardKey.toString());
+            if (value == null) {
+                throw new IllegalArgumentException("Person " + person.getId() + " has no attribute " + shardKey + ".");
+            }
+            key = Long.parseLong(value.toString());
+        }
+        return Math.floorMod(key, numberOfShards) == shardIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + shardIndex + " of " + numberOfShards + " by " + shardKey;
+    }
+}
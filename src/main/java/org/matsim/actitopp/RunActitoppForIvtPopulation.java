@@ -1,72 +1,122 @@
 package org.matsim.actitopp;
 
 import edu.kit.ifv.mobitopp.actitopp.*;
+import org.matsim.actitopp.GenerationMetrics.Phase;
 import org.apache.log4j.Logger;
-import org.locationtech.jts.geom.Point;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.gbl.MatsimRandom;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.io.PopulationReader;
-import org.matsim.core.router.FastDijkstraFactory;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.scenario.MutableScenario;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.GeometryUtils;
-import org.matsim.core.utils.gis.ShapeFileReader;
-import org.matsim.counts.Count;
-import org.matsim.counts.Counts;
-import org.matsim.counts.MatsimCountsReader;
-import org.matsim.counts.Volume;
 import org.matsim.facilities.ActivityFacilities;
 import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.MatsimFacilitiesReader;
-import org.matsim.utils.objectattributes.attributable.Attributes;
-import org.opengis.feature.simple.SimpleFeature;
-import playground.vsp.openberlinscenario.cemdap.input.CEMDAPPersonAttributes;
 
+import java.time.DayOfWeek;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * @author dziemke
  */
 public class RunActitoppForIvtPopulation {
     private static final Logger LOG = Logger.getLogger(RunActitoppForIvtPopulation.class);
-    private static ModelFileBase fileBase = new ModelFileBase();
-    private static RNGHelper randomgenerator = new RNGHelper(1234);
-	private final HashMap<Integer, SimpleFeature> mmm = new HashMap<>(  ) ;
+    private static ModelFileBase fileBase = ActitoppModelState.getShared().getFileBase();
 
-	Map<Integer, Coord> municipalityCenters;
-    Random random = MatsimRandom.getLocalInstance();
-    LeastCostPathCalculator leastCostPathCalculator;
+    // Every person draws from its own random streams, seeded from the person id, so that results do not depend on the
+    // order in which persons are processed or on the number of threads
+    private static final int ATTRIBUTES_RANDOM_STREAM = 0;
+    private static final int SCHEDULE_RANDOM_STREAM = 1;
+    private static final int LOCATION_RANDOM_STREAM = 2;
+    private static final int POOL_RANDOM_STREAM = 3;
+    private static final int SELECTION_RANDOM_STREAM = 4;
+    // Alternative plan k uses the schedule, location and pool streams shifted by k times this number
+    private static final int NUMBER_OF_RANDOM_STREAMS = 5;
+
+    // A distance tree holds one float per node; 500 trees of a full-CH network need roughly 2 GB
+    private static final int DEFAULT_MAX_RESIDENT_DISTANCE_TREES = 500;
+
+    // How often attributes are re-drawn with ScheduleFallback.redrawAttributes before a home-only plan is used
+    private static final int MAX_ATTRIBUTE_REDRAWS = 10;
+
+    // Travel time in seconds assumed for a secondary activity that is the first activity of its day
+    private static final double DEFAULT_SECONDARY_TRAVEL_TIME = 15 * 60.;
+
+    private MunicipalityRegistry municipalityRegistry;
+    private Map<Integer, Integer> municipalityCenterNodes;
+    private CompactCarGraph carGraph;
+    private NetworkNodeSnapper nodeSnapper;
+    private MunicipalityDistanceTable distanceTable;
+    private MunicipalityPointSampler municipalityPointSampler;
     private Scenario scenario;
-	private Map<Integer, List<Integer>> observedCommutes;
+	private CommuteDestinationSampler commuteDestinationSampler;
+    private long randomSeed = 1234;
+    private int numberOfThreads = 1;
+    private int maxScheduleAttempts = 100;
+    private ScheduleFallback scheduleFallback = ScheduleFallback.homeOnly;
+    private ScheduleRejectionStatistics rejectionStatistics;
+    private ScheduleRejectionStatistics poolRejectionStatistics;
+    private final Queue<Id<Person>> skippedPersons = new ConcurrentLinkedQueue<>();
+    private int schedulePoolSize = 0;
+    private double[] distanceBandUpperBoundsKm = PersonAttributeClass.DEFAULT_DISTANCE_BAND_UPPER_BOUNDS_KM;
+    private double poolValidationShare = 0.;
+    private SchedulePool schedulePool;
+    private ScheduleDistributionComparison poolComparison;
+    private PopulationShard shard;
+    private String checkpointDirectory;
+    private int checkpointInterval;
+    private GenerationMetrics metrics;
+    private int metricsReportIntervalSeconds = 60;
+    private String metricsCsvFile;
+    private int[] days = {0};
+    private boolean separateDayFiles = false;
+    private boolean preRouting = false;
+    private CarPlanRouter carPlanRouter;
+    private MunicipalitySkimMatrix commuteSkimMatrix;
+    private SecondaryLocationSampler secondaryLocationSampler;
+    private MunicipalityFacilitySampler workFacilitySampler;
+    private MunicipalityFacilitySampler educationFacilitySampler;
+    private int numberOfAlternativePlans = 1;
+    private PlanSelection planSelection = PlanSelection.first;
+    private String weekPatternArchiveFile;
+    private WeekPatternArchive.Writer archiveWriter;
+    private ScheduleCache scheduleCache;
+    private long scheduleSettingsHash;
 
     public RunActitoppForIvtPopulation(Scenario scenario, String municipalitiesShapeFile, String countsFile,
                                        int beginReprTimePeriod, int endReprTimePeriod){
-	    this.scenario = scenario;
-
-	    prepareObservedCommutes( countsFile, beginReprTimePeriod, endReprTimePeriod );
-	    createMunicipalityCenterMap( municipalitiesShapeFile );
-
-	    FreespeedTravelTimeAndDisutility freeSpeed = new FreespeedTravelTimeAndDisutility( scenario.getConfig().planCalcScore() );
-	    leastCostPathCalculator = (new FastDijkstraFactory()).createPathCalculator( scenario.getNetwork(), freeSpeed, freeSpeed );
+	    this( scenario, MunicipalityRegistry.load( municipalitiesShapeFile ),
+			    CommuteDestinationSampler.createFromFile( countsFile, beginReprTimePeriod, endReprTimePeriod ) );
+    }
 
-	    for( SimpleFeature feature : ShapeFileReader.getAllFeatures( municipalitiesShapeFile ) ){
-		    int municapalityId = Integer.valueOf(feature.getAttribute("GMDNR").toString());
-		    mmm.put( municapalityId, feature ) ;
-	    }
+    // Also used by the benchmarks with synthetic municipalities and commutes
+    RunActitoppForIvtPopulation(Scenario scenario, MunicipalityRegistry municipalityRegistry, CommuteDestinationSampler commuteDestinationSampler) {
+        this.scenario = scenario;
+        this.municipalityRegistry = municipalityRegistry;
+        this.commuteDestinationSampler = commuteDestinationSampler;
+        createDistanceTable();
+        municipalityPointSampler = new MunicipalityPointSampler(municipalityRegistry);
     }
 
     public static void main(String[] args) {
@@ -85,14 +135,25 @@ public class RunActitoppForIvtPopulation {
         String municipalitiesShapeFile = "../../shared-svn/projects/snf-big-data/data/original_files/municipalities/2018_boundaries/g2g18.shp";
         // String countsFile = "../../shared-svn/projects/snf-big-data/data/commute_counts/20161001_switzerland_2018_1pct.xml.gz";
         String countsFile = "../../shared-svn/projects/snf-big-data/data/commute_counts/20161001_zh-metro_2018_10pct.xml.gz";
+        // Binary matrix created with CommuteMatrixFile from the counts file above; starts faster
+        // String countsFile = "../../shared-svn/projects/snf-big-data/data/commute_counts/20161001_zh-metro_2018_10pct.bin";
         int beginReprTimePeriod = 6;
         int endReprTimePeriod = 10;
+        int numberOfThreads = Runtime.getRuntime().availableProcessors();
+        // Streaming keeps only a bounded number of persons in memory; use it for large samples
+        boolean streaming = false;
+        int streamingCapacity = 10000;
+        // For runs spread over several JVMs: process only one shard here, then combine all shard outputs with ShardMerger
+        // int numberOfShards = 4;
+        // int shardIndex = Integer.parseInt(args[0]);
 
         String populationScheduleFile = folderRoot + "population_1pct_plans_initial-coords.xml.gz";
 
         // Create scenario
         MutableScenario scenario = ScenarioUtils.createMutableScenario(ConfigUtils.createConfig());
-        new PopulationReader(scenario).readFile(populationFile);
+        if (!streaming) {
+            new PopulationReader(scenario).readFile(populationFile);
+        }
         new MatsimFacilitiesReader(scenario).readFile(facilitiesFile);
         new MatsimNetworkReader(scenario.getNetwork()).readFile(networkFile);
         TransportModeNetworkFilter filter = new TransportModeNetworkFilter(scenario.getNetwork());
@@ -105,8 +166,42 @@ public class RunActitoppForIvtPopulation {
         // Script
         RunActitoppForIvtPopulation ivtPopulationScheduler = new RunActitoppForIvtPopulation(scenario, municipalitiesShapeFile,
                 countsFile, beginReprTimePeriod, endReprTimePeriod);
-        ivtPopulationScheduler.runActitopp();
-        ivtPopulationScheduler.writeMatsimPlansFile(scenario.getPopulation(), populationScheduleFile);
+        ivtPopulationScheduler.setNumberOfThreads(numberOfThreads);
+        ivtPopulationScheduler.setScheduleRetryPolicy(100, ScheduleFallback.homeOnly);
+        // For what-if runs: draw patterns from 50 patterns per attribute class and compare 1% of the persons to exact patterns
+        // ivtPopulationScheduler.setSchedulePool(50, new double[]{1., 2., 5., 10., 20., 50.}, 0.01);
+        // ivtPopulationScheduler.setShard(ShardKey.canton_id, shardIndex, numberOfShards);
+        // To be able to resume a crashed run, store finished persons every 10000 persons
+        // ivtPopulationScheduler.setCheckpointing(folderRoot + "checkpoints/", 10000);
+        // For weekday/weekend studies: plans for all days of the week, one file per day
+        // ivtPopulationScheduler.setDays(new int[]{0, 1, 2, 3, 4, 5, 6}, true);
+        // Assign links and car routes already here, so that MATSim can start without routing the initial plans
+        // ivtPopulationScheduler.setPreRouting(true);
+        // Initial locations of leisure, shopping and other activities at facilities offering them, reached at 30 km/h beeline.
+        // The options must be the same as in MATSim: assign them once with SecondaryActivityOptions.main, or here as RunMatsim does
+        // SecondaryActivityOptions.assignRandomly(scenario.getActivityFacilities(), SecondaryActivityOptions.DEFAULT_SEED);
+        // ivtPopulationScheduler.setSecondaryFacilities(scenario.getActivityFacilities(), 30. / 3.6);
+        // Work and education locations at facilities weighted by capacity instead of uniformly inside the municipality
+        // ivtPopulationScheduler.setWorkEducationFacilities(workEducationFacilities);
+        // Start MATSim with more variety: three alternative plans per person, a random one selected
+        // ivtPopulationScheduler.setAlternativePlans(3, PlanSelection.random);
+        // Keep the actitopp output, so that plan building can be changed later without running actitopp again
+        // ivtPopulationScheduler.setWeekPatternArchive(folderRoot + "actitopp_week_patterns.bin.gz");
+        // After changing a few inputs, only generate schedules again for persons whose actitopp input changed; the others
+        // are taken from the archive of the previous run, which is then replaced by the archive of this run
+        // ivtPopulationScheduler.setScheduleCache(folderRoot + "actitopp_week_patterns.bin.gz");
+        // Commuting distances between municipality centers, from a skim file created with MunicipalitySkimBuilder
+        // ivtPopulationScheduler.setCommuteSkimMatrix(MunicipalitySkimMatrix.open("../../shared-svn/projects/snf-big-data/data/scenario/transport_supply/municipality_skims_car.bin"));
+        ivtPopulationScheduler.setMetricsOutput(60, folderRoot + "actitopp_generation_metrics.csv");
+        // populationScheduleFile = folderRoot + "population_1pct_plans_initial-coords_shard-" + shardIndex + ".xml.gz";
+        if (streaming) {
+            ivtPopulationScheduler.runActitoppStreaming(populationFile, populationScheduleFile, streamingCapacity);
+        } else {
+            ivtPopulationScheduler.runActitopp();
+            // Or, to build the plans from the archive of an earlier run without running actitopp:
+            // ivtPopulationScheduler.createPlansFromArchive(folderRoot + "actitopp_week_patterns.bin.gz");
+            ivtPopulationScheduler.writeMatsimPlansFile(scenario.getPopulation(), populationScheduleFile);
+        }
     }
 
 
@@ -115,8 +210,7 @@ public class RunActitoppForIvtPopulation {
     // Information from "https://github.com/mobitopp/actitopp"
     // 1 = full-time occupied; 2 = half-time occupied; 3 = not occupied; 4 = student (school or university);
     // 5 = worker in vocational program; 7 = retired person / pensioner
-    private static int getEmploymentClassSwitzerland(boolean employed, int age) {
-        Random random = MatsimRandom.getLocalInstance();
+    private static int getEmploymentClassSwitzerland(boolean employed, int age, Random random) {
         int employmentClass = -1;
         if (employed) {
             double randomNumber = random.nextDouble();
@@ -161,68 +255,692 @@ public class RunActitoppForIvtPopulation {
     }
 
     // Information from "https://github.com/mobitopp/actitopp/blob/master/src/main/java/edu/kit/ifv/mobitopp/actitopp/Configuration.java"
-    private static String transformActType(ActivityType activityTypeLetter) {
+    private static ActiToppActivityTypes transformActType(ActivityType activityTypeLetter) {
         if (activityTypeLetter == ActivityType.HOME) {
-            return ActiToppActivityTypes.home.toString();
+            return ActiToppActivityTypes.home;
         } else if (activityTypeLetter == ActivityType.WORK) {
-            return ActiToppActivityTypes.work.toString();
+            return ActiToppActivityTypes.work;
         } else if (activityTypeLetter == ActivityType.EDUCATION) {
-            return ActiToppActivityTypes.education.toString();
+            return ActiToppActivityTypes.education;
         } else if (activityTypeLetter == ActivityType.LEISURE) {
-            return ActiToppActivityTypes.leisure.toString();
+            return ActiToppActivityTypes.leisure;
         } else if (activityTypeLetter == ActivityType.SHOPPING) {
-            return ActiToppActivityTypes.shopping.toString();
+            return ActiToppActivityTypes.shopping;
         } else if (activityTypeLetter == ActivityType.TRANSPORT) {
-            return ActiToppActivityTypes.other.toString();
+            return ActiToppActivityTypes.other;
         } else {
             LOG.error(new IllegalArgumentException("Activity type " + activityTypeLetter + " not allowed."));
             return null;
         }
     }
 
+    public void setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public void setMaxResidentDistanceTrees(int maxResidentDistanceTrees) {
+        this.distanceTable.setMaxResidentTrees(maxResidentDistanceTrees);
+    }
+
+    /**
+     * Sets how often actitopp may try to create a valid pattern for a person, and what happens if all attempts fail.
+     */
+    public void setScheduleRetryPolicy(int maxScheduleAttempts, ScheduleFallback scheduleFallback) {
+        if (maxScheduleAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt per person is needed.");
+        }
+        this.maxScheduleAttempts = maxScheduleAttempts;
+        this.scheduleFallback = scheduleFallback;
+    }
+
+    /**
+     * Switches to the fast approximate mode: instead of generating a pattern for every person, poolSize patterns are
+     * generated per attribute class, and every person draws one of them. Commuting distances are banded by the given upper
+     * bounds. For the given share of persons, an exact pattern is generated in addition, in order to report how much the
+     * pooled patterns deviate from exact ones.
+     */
+    public void setSchedulePool(int poolSize, double[] distanceBandUpperBoundsKm, double validationShare) {
+        this.schedulePoolSize = poolSize;
+        this.distanceBandUpperBoundsKm = distanceBandUpperBoundsKm;
+        this.poolValidationShare = validationShare;
+    }
+
+    /**
+     * Only generates plans for the persons of one shard, so that a population can be processed by several JVMs. Persons
+     * outside the shard are removed from the population. Shard outputs are combined with {@link ShardMerger}.
+     */
+    public void setShard(ShardKey shardKey, int shardIndex, int numberOfShards) {
+        this.shard = new PopulationShard(shardKey, shardIndex, numberOfShards);
+    }
+
+    /**
+     * Makes {@link #runActitopp()} store the finished persons in the given directory every checkpointInterval persons. If
+     * the directory contains a checkpoint of an earlier run with the same settings, the persons finished in that run are
+     * restored and not generated again; the result is the same as that of an uninterrupted run. Besides the settings, the
+     * contents of population, facilities, network, municipalities and commutes must be the same to resume. Cannot be
+     * combined with {@link #setWeekPatternArchive(String)}.
+     */
+    public void setCheckpointing(String checkpointDirectory, int checkpointInterval) {
+        this.checkpointDirectory = checkpointDirectory;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Sets how often throughput, phase times and heap use are logged during a run, and a CSV file to which these figures are
+     * written at the end (null for none). With a report interval of 0, the figures are only logged at the end.
+     */
+    public void setMetricsOutput(int reportIntervalSeconds, String csvFile) {
+        if (reportIntervalSeconds < 0) {
+            throw new IllegalArgumentException("The report interval must not be negative.");
+        }
+        this.metricsReportIntervalSeconds = reportIntervalSeconds;
+        this.metricsCsvFile = csvFile;
+    }
+
+    /**
+     * Sets the days of the actitopp week (0 = Monday, ..., 6 = Sunday) for which plans are created. With more than one day,
+     * every person gets one plan per day, tagged with the day as plan type (e.g. "saturday"). With separateDayFiles, one
+     * plans file per day is written instead, with the day appended to the file name.
+     * <p>
+     * An activity belongs to the day on which it starts. Its end time is measured from midnight of that day, so an activity
+     * that lasts beyond midnight ends after 24:00 in the plan of its day and does not reappear in the plan of the next day.
+     */
+    public void setDays(int[] days, boolean separateDayFiles) {
+        for (int day : days) {
+            if (day < 0 || day > 6) {
+                throw new IllegalArgumentException("Day " + day + " is not a day of the actitopp week.");
+            }
+        }
+        this.days = days.clone();
+        this.separateDayFiles = separateDayFiles;
+    }
+
+    /**
+     * With preRouting, every activity gets the nearest car link and every leg a car route with freespeed travel times, so
+     * that MATSim does not need to route the initial plans. Without, plans only have coordinates, as before.
+     */
+    public void setPreRouting(boolean preRouting) {
+        this.preRouting = preRouting;
+    }
+
+    /**
+     * With a skim matrix, commuting distances are taken from the center of the home municipality instead of the home
+     * location, which avoids computing a distance tree per destination. Pairs missing in the matrix are computed as before,
+     * and so are commutes within the home municipality: the diagonal of the matrix is the distance from the center to
+     * itself, i.e. 0, which actitopp would not distinguish from not commuting.
+     */
+    public void setCommuteSkimMatrix(MunicipalitySkimMatrix commuteSkimMatrix) {
+        this.commuteSkimMatrix = commuteSkimMatrix;
+    }
+
+    /**
+     * With secondary facilities, leisure, shopping and other activities are placed at facilities offering them, within the
+     * beeline distance that can be covered at beelineSpeed (m/s) in the travel time actitopp leaves before the activity.
+     * Without, these activities are placed at home, as before. Every one of these activity types must be offered by at
+     * least one facility; facilities without such options can be given them with {@link SecondaryActivityOptions}.
+     */
+    public void setSecondaryFacilities(ActivityFacilities secondaryFacilities, double beelineSpeed) {
+        this.secondaryLocationSampler = new SecondaryLocationSampler(secondaryFacilities, beelineSpeed);
+    }
+
+    /**
+     * Creates numberOfAlternativePlans week patterns per person instead of one, all from the same attributes and commutes,
+     * and adds the plans of all of them; planSelection decides which one is selected. The plans of one alternative are
+     * adjacent, one per day. Alternatives for which actitopp finds no valid pattern are left out. At most 255 alternatives
+     * are possible, as the archive stores the alternative in one byte. MATSim keeps only as many plans as its plan memory
+     * size (by default 5), so it must be at least the number of plans per person; RunMatsim sets it accordingly.
+     */
+    public void setAlternativePlans(int numberOfAlternativePlans, PlanSelection planSelection) {
+        if (numberOfAlternativePlans < 1) {
+            throw new IllegalArgumentException("At least one plan per person is needed.");
+        }
+        if (numberOfAlternativePlans > WeekPatternArchive.MAX_ALTERNATIVES) {
+            throw new IllegalArgumentException("At most " + WeekPatternArchive.MAX_ALTERNATIVES + " alternative plans per person are possible.");
+        }
+        this.numberOfAlternativePlans = numberOfAlternativePlans;
+        this.planSelection = planSelection;
+    }
+
+    /**
+     * Stores the week schedules generated by actitopp in an archive, from which plans can be created again with
+     * {@link #createPlansFromArchive(String)}. Cannot be combined with {@link #setCheckpointing(String, int)}, as the
+     * schedules of persons restored from a checkpoint are not known and the archive would be incomplete.
+     */
+    public void setWeekPatternArchive(String weekPatternArchiveFile) {
+        this.weekPatternArchiveFile = weekPatternArchiveFile;
+    }
+
+    /**
+     * Reuses the week schedules of an earlier run, archived with {@link #setWeekPatternArchive(String)}, for all persons
+     * whose actitopp attributes (including commuting distances) are the same as in that run; actitopp is only run for the
+     * other persons. Schedules are only reused if the random seed, the retry policy, the schedule pool and the actitopp
+     * jar including its model parameter files are also the same, so the plans are the same as without cache. Schedules
+     * found after re-drawing attributes are never reused. The archive is copied here, so the archive of this run may be
+     * written to the same file; the copy is used for the next run only and deleted afterwards.
+     */
+    public void setScheduleCache(String previousArchiveFile) {
+        if (ActitoppModelState.getModelFingerprint() == null) {
+            LOG.warn("Without a hash of the actitopp model, cached schedules could stem from another model; the schedule cache is not used.");
+            return;
+        }
+        this.scheduleCache = new ScheduleCache(previousArchiveFile);
+    }
+
+    /**
+     * With work and education facilities, work and education activities are placed at a facility of the destination
+     * municipality that offers them, drawn by capacity. Municipalities without such a facility, and all municipalities
+     * without facilities given, get a uniformly drawn point inside the municipality polygon, as before. A hectare grid of
+     * jobs or pupils can be given as facilities with the counts as capacities.
+     */
+    public void setWorkEducationFacilities(ActivityFacilities workEducationFacilities) {
+        this.workFacilitySampler = new MunicipalityFacilitySampler(workEducationFacilities, ActiToppActivityTypes.work.toString(), municipalityRegistry);
+        this.educationFacilitySampler = new MunicipalityFacilitySampler(workEducationFacilities, ActiToppActivityTypes.education.toString(), municipalityRegistry);
+    }
+
     public void runActitopp() {
+        if (shard != null) {
+            removePersonsOutsideShard();
+        }
+        if (checkpointDirectory != null && weekPatternArchiveFile != null) {
+            // Restored persons have plans but no schedules, so the archive would miss them; plans created from it and
+            // schedule caches read from it would then lack these persons
+            throw new IllegalStateException("Checkpointing cannot be combined with a week pattern archive.");
+        }
+        List<Person> persons = new ArrayList<>(scenario.getPopulation().getPersons().values());
+        CheckpointStore checkpointStore = null;
+        if (checkpointDirectory != null) {
+            checkpointStore = new CheckpointStore(checkpointDirectory, createRunFingerprint());
+            Set<Id<Person>> finishedPersons = checkpointStore.restore(scenario.getPopulation());
+            List<Person> pendingPersons = new ArrayList<>();
+            for (Person matsimPerson : persons) {
+                if (!finishedPersons.contains(matsimPerson.getId())) {
+                    pendingPersons.add(matsimPerson);
+                } else if (matsimPerson.getPlans().isEmpty()) {
+                    skippedPersons.add(matsimPerson.getId());
+                }
+            }
+            persons = pendingPersons;
+        }
+        // Households are the work units: the home node of a household is found once for all members, and households of
+        // the same municipality are processed one after another
+        PersonAttributeColumns unorderedColumns = PersonAttributeColumns.create(persons, scenario.getActivityFacilities());
+        int[] householdOrder = unorderedColumns.createHouseholdOrder();
+        PersonAttributeColumns columns = unorderedColumns.select(householdOrder);
+        List<Person> orderedPersons = new ArrayList<>(persons.size());
+        for (int row : householdOrder) {
+            orderedPersons.add(persons.get(row));
+        }
+        persons = orderedPersons;
+        int[] householdStarts = columns.getHouseholdStarts();
+        int numberOfHouseholds = householdStarts.length - 1;
+        LOG.info("Start generating schedules for " + persons.size() + " persons in " + numberOfHouseholds + " households with "
+                + numberOfThreads + " thread(s).");
+        startScheduleGeneration();
+
+        // Batches consist of whole households. One thread pool serves all batches, so that per-thread state (such as the
+        // path searches of the router) is only allocated once per run
+        ExecutorService executor = numberOfThreads > 1 ? Executors.newFixedThreadPool(numberOfThreads) : null;
+        try {
+            int batchSize = checkpointStore == null ? Math.max(1, persons.size()) : checkpointInterval;
+            int firstHousehold = 0;
+            while (firstHousehold < numberOfHouseholds) {
+                int endHousehold = firstHousehold + 1;
+                while (endHousehold < numberOfHouseholds && householdStarts[endHousehold] - householdStarts[firstHousehold] < batchSize) {
+                    endHousehold++;
+                }
+                if (executor == null) {
+                    for (int household = firstHousehold; household < endHousehold; household++) {
+                        processHousehold(persons, columns, householdStarts[household], householdStarts[household + 1]);
+                    }
+                } else {
+                    processHouseholdsInParallel(executor, persons, columns, householdStarts, firstHousehold, endHousehold);
+                }
+                if (checkpointStore != null) {
+                    checkpointStore.writeChunk(persons.subList(householdStarts[firstHousehold], householdStarts[endHousehold]));
+                }
+                firstHousehold = endHousehold;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        finishScheduleGeneration();
+        removeSkippedPersons();
+    }
+
+    // Everything that influences the generated plans; a checkpoint may only be resumed with identical settings
+    private String createRunFingerprint() {
+        return "randomSeed=" + randomSeed + ";maxScheduleAttempts=" + maxScheduleAttempts + ";scheduleFallback=" + scheduleFallback
+                + ";schedulePoolSize=" + schedulePoolSize + ";distanceBands=" + Arrays.toString(distanceBandUpperBoundsKm)
+                + ";poolValidationShare=" + poolValidationShare + ";shard=" + shard + ";days=" + Arrays.toString(days)
+                + ";preRouting=" + preRouting + ";commuteSkims=" + (commuteSkimMatrix != null)
+                + ";secondaryFacilities=" + (secondaryLocationSampler != null) + ";workEducationFacilities=" + (workFacilitySampler != null)
+                + ";alternativePlans=" + numberOfAlternativePlans + ";planSelection=" + planSelection
+                + ";" + createInputFingerprint();
+    }
+
+    // Hashes of the contents of the inputs, so that a checkpoint is not resumed after an input changed. Sums of hashes per
+    // element, so that they do not depend on the order in which the elements were read
+    private String createInputFingerprint() {
+        long populationHash = 0L;
+        for (Person matsimPerson : scenario.getPopulation().getPersons().values()) {
+            long personHash = ActiToppUtils.combine(0L, matsimPerson.getId().toString().hashCode());
+            populationHash += ActiToppUtils.combine(personHash, new TreeMap<>(matsimPerson.getAttributes().getAsMap()).toString().hashCode());
+        }
+        long facilitiesHash = 0L;
+        for (ActivityFacility facility : scenario.getActivityFacilities().getFacilities().values()) {
+            long facilityHash = ActiToppUtils.combine(0L, facility.getId().toString().hashCode());
+            facilityHash = ActiToppUtils.combine(facilityHash, Double.doubleToLongBits(facility.getCoord().getX()));
+            facilitiesHash += ActiToppUtils.combine(facilityHash, Double.doubleToLongBits(facility.getCoord().getY()));
+        }
+        long networkHash = 0L;
+        for (Link link : scenario.getNetwork().getLinks().values()) {
+            long linkHash = ActiToppUtils.combine(0L, link.getId().toString().hashCode());
+            linkHash = ActiToppUtils.combine(linkHash, link.getFromNode().getId().toString().hashCode());
+            linkHash = ActiToppUtils.combine(linkHash, link.getToNode().getId().toString().hashCode());
+            linkHash = ActiToppUtils.combine(linkHash, Double.doubleToLongBits(link.getLength()));
+            networkHash += ActiToppUtils.combine(linkHash, Double.doubleToLongBits(link.getFreespeed()));
+        }
+        return "population=" + Long.toHexString(populationHash) + ";facilities=" + Long.toHexString(facilitiesHash)
+                + ";network=" + Long.toHexString(networkHash) + ";municipalities=" + Long.toHexString(municipalityRegistry.createFingerprint())
+                + ";commutes=" + Long.toHexString(commuteDestinationSampler.getFingerprint());
+    }
+
+    /**
+     * Reads persons from the population file, generates their plans and writes them to the output file while reading.
+     * Persons are never all in memory at the same time; at most streamingCapacity persons are between reading and writing.
+     * The output is the same as with {@link #runActitopp()}, with persons in the order of the input file. With a shard,
+     * the input file must be sorted by person id for the output to be mergeable.
+     */
+    public void runActitoppStreaming(String populationFile, String outputPopulationFile, int streamingCapacity) {
+        nodeSnapper.snapAll(scenario.getActivityFacilities().getFacilities().values(), numberOfThreads);
+        LOG.info("Start generating schedules for persons streamed from " + populationFile + " with " + numberOfThreads + " thread(s).");
+        startScheduleGeneration();
+
+        DayPopulationWriter populationWriter = new DayPopulationWriter(outputPopulationFile);
+        ActivityFacilities facilities = scenario.getActivityFacilities();
+        Predicate<Person> processor = person -> processPerson(person, PersonAttributeColumns.create(person, facilities), 0);
+        if (shard != null) {
+            LOG.info("Only generate schedules for " + shard + ".");
+            processor = person -> shard.contains(person) && processPerson(person, PersonAttributeColumns.create(person, facilities), 0);
+        }
+        StreamingPersonPipeline pipeline = new StreamingPersonPipeline(numberOfThreads, streamingCapacity, processor, populationWriter::run);
+        StreamingPopulationReader populationReader = new StreamingPopulationReader(scenario);
+        populationReader.addAlgorithm(pipeline);
+        populationReader.readFile(populationFile);
+        pipeline.finish();
+        populationWriter.close();
+
+        finishScheduleGeneration();
+    }
+
+    void startScheduleGeneration() {
+        metrics = new GenerationMetrics();
+        metrics.start(metricsReportIntervalSeconds);
+        rejectionStatistics = new ScheduleRejectionStatistics("Schedules");
+        if (schedulePoolSize > 0) {
+            LOG.info("Use schedule pools of size " + schedulePoolSize + ".");
+            // Pool patterns are generated for representative inputs, not for persons, and are therefore counted separately
+            poolRejectionStatistics = new ScheduleRejectionStatistics("Schedule pools (representative persons)");
+            schedulePool = new SchedulePool(schedulePoolSize, distanceBandUpperBoundsKm, randomSeed,
+                    (input, randomGenerator) -> createActitoppWeekPattern(input, randomGenerator, poolRejectionStatistics));
+            poolComparison = new ScheduleDistributionComparison();
+        }
+        if (preRouting) {
+            carPlanRouter = new CarPlanRouter(carGraph, nodeSnapper);
+        }
+        if (weekPatternArchiveFile != null) {
+            archiveWriter = new WeekPatternArchive.Writer(weekPatternArchiveFile);
+        }
+        scheduleSettingsHash = createScheduleSettingsHash();
+    }
+
+    // Everything besides the person that influences the generated schedule, for the keys of the schedule cache
+    private long createScheduleSettingsHash() {
+        String scheduleSettings = "randomSeed=" + randomSeed + ";maxScheduleAttempts=" + maxScheduleAttempts + ";scheduleFallback=" + scheduleFallback
+                + ";schedulePoolSize=" + schedulePoolSize + ";distanceBands=" + Arrays.toString(distanceBandUpperBoundsKm)
+                + ";poolValidationShare=" + poolValidationShare + ";actitopp=" + ActitoppModelState.getModelFingerprint();
+        return ActiToppUtils.combine(randomSeed, scheduleSettings.hashCode());
+    }
+
+    /**
+     * @return the key under which the schedule of this alternative is cached; it differs as soon as the person, the input
+     * or the settings differ
+     */
+    private long createScheduleKey(Id<Person> personId, int alternative, ActitoppPersonInput actitoppInput) {
+        long seed = ActiToppUtils.createSeed(scheduleSettingsHash, personId, SCHEDULE_RANDOM_STREAM + alternative * NUMBER_OF_RANDOM_STREAMS);
+        return actitoppInput.createKey(seed);
+    }
+
+    private WeekSchedule getCachedSchedule(Id<Person> personId, long scheduleKey) {
+        return scheduleCache == null ? null : scheduleCache.get(personId, scheduleKey);
+    }
+
+    void finishScheduleGeneration() {
+        metrics.stop();
+        if (metricsCsvFile != null) {
+            metrics.writeCsv(metricsCsvFile);
+        }
+        rejectionStatistics.log();
+        if (schedulePool != null) {
+            LOG.info(schedulePool.getNumberOfPools() + " schedule pools were used.");
+            poolRejectionStatistics.log();
+            poolComparison.log();
+        }
+        if (carPlanRouter != null) {
+            carPlanRouter.logStatistics();
+        }
+        if (archiveWriter != null) {
+            archiveWriter.close();
+            archiveWriter = null;
+        }
+        if (scheduleCache != null) {
+            scheduleCache.logStatistics();
+            scheduleCache.close();
+            scheduleCache = null;
+        }
+    }
+
+    /**
+     * Creates the plans of the persons of the scenario from the week schedules in an archive written by an earlier run
+     * (see {@link #setWeekPatternArchive(String)}), without running actitopp. The persons must not have plans yet. Plans
+     * are built with the current settings for days, locations and routing; with the settings of the earlier run, they are
+     * the same as in that run. Only plans and work/education municipalities are restored, not the other attributes set
+     * for actitopp. Persons without schedule in the archive are removed.
+     */
+    public void createPlansFromArchive(String archiveFile) {
+        if (shard != null) {
+            removePersonsOutsideShard();
+        }
+        metrics = new GenerationMetrics();
+        metrics.start(metricsReportIntervalSeconds);
+        if (preRouting) {
+            carPlanRouter = new CarPlanRouter(carGraph, nodeSnapper);
+        }
         Population population = scenario.getPopulation();
         ActivityFacilities facilities = scenario.getActivityFacilities();
+        Set<Id<Person>> archivedPersons = new LinkedHashSet<>();
+        WeekPatternArchive.read(archiveFile, (personId, alternative, workEduMunicipality, key, weekSchedule) -> {
+            Person matsimPerson = population.getPersons().get(personId);
+            if (matsimPerson == null || alternative >= numberOfAlternativePlans) {
+                return; // Not in this population or shard, or more alternatives archived than wanted
+            }
+            if (workEduMunicipality == WeekPatternArchive.NO_MUNICIPALITY) {
+                matsimPerson.getAttributes().removeAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString());
+            } else {
+                matsimPerson.getAttributes().putAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString(), workEduMunicipality);
+            }
+            PersonAttributeColumns columns = PersonAttributeColumns.create(matsimPerson, facilities);
+            // The same location stream as when the schedule was generated
+            Random locationRandom = new Random(ActiToppUtils.createSeed(randomSeed, personId, LOCATION_RANDOM_STREAM + alternative * NUMBER_OF_RANDOM_STREAMS));
+            addPlans(matsimPerson, weekSchedule, columns.getHomeFacility(0).getCoord(), columns.getMunicipalityId(0),
+                    workEduMunicipality, locationRandom);
+            if (alternative == 0) {
+                metrics.addPerson();
+            }
+            archivedPersons.add(personId);
+        });
+        for (Id<Person> personId : archivedPersons) {
+            selectPlan(population.getPersons().get(personId));
+        }
         for (Person matsimPerson : population.getPersons().values()) {
-            Id<ActivityFacility> facId = Id.create(matsimPerson.getAttributes().getAttribute(IvtPopulationParser.AttributeLabels.facility_id.toString()).toString(), ActivityFacility.class);
-            Coord homeCoord = facilities.getFacilities().get(facId).getCoord();
+            if (!archivedPersons.contains(matsimPerson.getId())) {
+                skippedPersons.add(matsimPerson.getId());
+            }
+        }
+        LOG.info("Plans of " + archivedPersons.size() + " persons created from " + archiveFile + "; " + skippedPersons.size()
+                + " persons without archived schedule are removed.");
+        removeSkippedPersons();
 
-            ActitoppPerson actitoppPerson = createActitoppPersonSwitzerland(matsimPerson, homeCoord);
+        metrics.stop();
+        if (carPlanRouter != null) {
+            carPlanRouter.logStatistics();
+        }
+    }
 
-            HWeekPattern weekPattern = createActitoppWeekPattern(actitoppPerson);
-            Plan matsimPlan = createMatsimPlan(matsimPerson, weekPattern, population, homeCoord);
+    private void processHouseholdsInParallel(ExecutorService executor, List<Person> persons, PersonAttributeColumns columns,
+                                             int[] householdStarts, int firstHousehold, int endHousehold) {
+        // Workers pull households from a shared index
+        AtomicInteger nextHousehold = new AtomicInteger(firstHousehold);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            futures.add(executor.submit(() -> {
+                int household;
+                while ((household = nextHousehold.getAndIncrement()) < endHousehold) {
+                    processHousehold(persons, columns, householdStarts[household], householdStarts[household + 1]);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new RuntimeException("Schedule generation failed.", e);
+        }
+    }
+
+    /**
+     * Processes the persons in the rows from firstRow (inclusive) to endRow (exclusive), who share a home facility. The
+     * home node and the commuting distances from the home are determined once for all members.
+     */
+    private void processHousehold(List<Person> persons, PersonAttributeColumns columns, int firstRow, int endRow) {
+        long startNanos = System.nanoTime();
+        int homeNode = getHomeNode(columns.getHomeFacility(firstRow));
+        metrics.addSince(Phase.nodeSnapping, startNanos);
+        HomeDistances homeDistances = new HomeDistances();
+        for (int row = firstRow; row < endRow; row++) {
+            Person matsimPerson = persons.get(row);
+            if (!processPerson(matsimPerson, columns, row, homeNode, homeDistances)) {
+                skippedPersons.add(matsimPerson.getId());
+            }
+        }
+    }
+
+    /**
+     * @param row the row of the person in the attribute columns
+     * @return false if the person is to be skipped as no valid pattern was found
+     */
+    private boolean processPerson(Person matsimPerson, PersonAttributeColumns columns, int row) {
+        long startNanos = System.nanoTime();
+        int homeNode = getHomeNode(columns.getHomeFacility(row));
+        metrics.addSince(Phase.nodeSnapping, startNanos);
+        return processPerson(matsimPerson, columns, row, homeNode, new HomeDistances());
+    }
+
+    /**
+     * @param homeNode the network node of the person's home facility
+     * @param homeDistances commuting distances from the person's home, shared with the other members of the household
+     */
+    private boolean processPerson(Person matsimPerson, PersonAttributeColumns columns, int row, int homeNode, HomeDistances homeDistances) {
+        Coord homeCoord = columns.getHomeFacility(row).getCoord();
+
+        Random attributesRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), ATTRIBUTES_RANDOM_STREAM));
+        RNGHelper scheduleRandom = new RNGHelper(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), SCHEDULE_RANDOM_STREAM));
+        Random locationRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), LOCATION_RANDOM_STREAM));
+        Random poolRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), POOL_RANDOM_STREAM));
+
+        ActitoppPersonInput actitoppInput = createActitoppInputSwitzerland(columns, row, homeCoord, homeNode, homeDistances, attributesRandom);
+        long scheduleKey = createScheduleKey(matsimPerson.getId(), 0, actitoppInput);
+        WeekSchedule weekSchedule = getCachedSchedule(matsimPerson.getId(), scheduleKey);
+        if (weekSchedule == null) {
+            HWeekPattern weekPattern = createWeekPattern(actitoppInput, scheduleRandom, poolRandom);
+            for (int redraws = 0; weekPattern == null && scheduleFallback == ScheduleFallback.redrawAttributes && redraws < MAX_ATTRIBUTE_REDRAWS; redraws++) {
+                actitoppInput = createActitoppInputSwitzerland(columns, row, homeCoord, homeNode, homeDistances, attributesRandom);
+                weekPattern = createWeekPattern(actitoppInput, scheduleRandom, poolRandom);
+                scheduleKey = WeekPatternArchive.NO_KEY; // The schedule no longer belongs to the first attributes
+            }
+            if (weekPattern != null || scheduleFallback != ScheduleFallback.skip) {
+                weekSchedule = weekPattern == null ? WeekSchedule.EMPTY : WeekSchedule.of(weekPattern);
+            }
+        }
+
+        // The attributes drawn for actitopp are copied to the person once, after the last draw
+        long startNanos = System.nanoTime();
+        columns.copyDrawnAttributes(row, matsimPerson.getAttributes());
+        metrics.addSince(Phase.attributeMapping, startNanos);
+        metrics.addPerson();
+        if (weekSchedule == null) {
+            return false; // Skipped as no valid pattern was found
+        }
+        int homeMunicipality = columns.getMunicipalityId(row);
+        int workEduMunicipality = columns.getWorkEduMunicipality(row);
+        addAlternative(matsimPerson, 0, scheduleKey, weekSchedule, homeCoord, homeMunicipality, workEduMunicipality, locationRandom);
+        if (weekSchedule.isEmpty()) {
+            return true; // No alternatives if not even the first pattern could be generated
+        }
+
+        // Alternatives share the attributes, commutes and distances of the first pattern and differ only in their seeds
+        for (int alternative = 1; alternative < numberOfAlternativePlans; alternative++) {
+            int streamOffset = alternative * NUMBER_OF_RANDOM_STREAMS;
+            scheduleRandom = new RNGHelper(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), SCHEDULE_RANDOM_STREAM + streamOffset));
+            locationRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), LOCATION_RANDOM_STREAM + streamOffset));
+            poolRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), POOL_RANDOM_STREAM + streamOffset));
+            long alternativeKey = createScheduleKey(matsimPerson.getId(), alternative, actitoppInput);
+            WeekSchedule alternativeSchedule = getCachedSchedule(matsimPerson.getId(), alternativeKey);
+            if (alternativeSchedule == null) {
+                HWeekPattern alternativePattern = createWeekPattern(actitoppInput, scheduleRandom, poolRandom);
+                alternativeSchedule = alternativePattern == null ? null : WeekSchedule.of(alternativePattern);
+            }
+            if (alternativeSchedule != null) { // Alternatives without valid pattern are left out
+                addAlternative(matsimPerson, alternative, alternativeKey, alternativeSchedule, homeCoord, homeMunicipality,
+                        workEduMunicipality, locationRandom);
+            }
+        }
+        selectPlan(matsimPerson);
+        return true;
+    }
+
+    private void selectPlan(Person matsimPerson) {
+        if (numberOfAlternativePlans > 1) {
+            Random selectionRandom = new Random(ActiToppUtils.createSeed(randomSeed, matsimPerson.getId(), SELECTION_RANDOM_STREAM));
+            int selectedAlternative = selectAlternative(matsimPerson.getPlans(), selectionRandom);
+            matsimPerson.setSelectedPlan(matsimPerson.getPlans().get(selectedAlternative * days.length));
+        }
+    }
+
+    /**
+     * Adds the plans of one alternative and, if an archive is written, archives its schedule.
+     *
+     * @param scheduleKey the key of the input the schedule was generated from, or {@link WeekPatternArchive#NO_KEY}
+     * @param workEduMunicipality the municipality of work or education, or {@link MunicipalityRegistry#NO_MUNICIPALITY}
+     */
+    private void addAlternative(Person matsimPerson, int alternative, long scheduleKey, WeekSchedule weekSchedule, Coord homeCoord,
+                                int homeMunicipality, int workEduMunicipality, Random locationRandom) {
+        if (archiveWriter != null) {
+            archiveWriter.add(matsimPerson.getId(), alternative, workEduMunicipality, scheduleKey, weekSchedule);
+        }
+        addPlans(matsimPerson, weekSchedule, homeCoord, homeMunicipality, workEduMunicipality, locationRandom);
+    }
+
+    /**
+     * Adds one plan per day for the schedule, or a home-only plan per day if the schedule is empty. The plans of one
+     * schedule are adjacent, in the order of the days.
+     */
+    private void addPlans(Person matsimPerson, WeekSchedule weekSchedule, Coord homeCoord, int homeMunicipality,
+                          int workEduMunicipality, Random locationRandom) {
+        Population population = scenario.getPopulation();
+        for (int day : days) {
+            Plan matsimPlan;
+            if (!weekSchedule.isEmpty()) {
+                matsimPlan = createMatsimPlan(weekSchedule, population, homeCoord, homeMunicipality, workEduMunicipality, day, locationRandom);
+            } else {
+                long startNanos = System.nanoTime();
+                matsimPlan = createHomeOnlyPlan(population, homeCoord);
+                metrics.addSince(Phase.planBuilding, startNanos);
+            }
+            if (days.length > 1) {
+                matsimPlan.setType(getDayName(day));
+            }
+            if (carPlanRouter != null) {
+                long startNanos = System.nanoTime();
+                carPlanRouter.route(matsimPlan);
+                metrics.addSince(Phase.routing, startNanos);
+            }
             matsimPerson.addPlan(matsimPlan);
         }
     }
 
-    private void prepareObservedCommutes(String countsFile, int beginReprTimePeriod, int endReprTimePeriod) {
-        LOG.info("Start creating map with observed commutes.");
-        Counts commuteCounts = new Counts();
-        MatsimCountsReader countsReader = new MatsimCountsReader(commuteCounts);
-        countsReader.readFile(countsFile);
-        this.observedCommutes = new HashMap<>();
-
-        for (Object uncastedCount : commuteCounts.getCounts().values()) {
-            Count count = (Count) uncastedCount;
-            String[] from_to = count.getId().toString().split("_");
-            int from = Integer.parseInt(from_to[0]);
-            int to = Integer.parseInt(from_to[1]);
-            for (Object uncastedVolume : count.getVolumes().values()) {
-                Volume volume = (Volume) uncastedVolume;
-                if (beginReprTimePeriod < volume.getHourOfDayStartingWithOne() && volume.getHourOfDayStartingWithOne() <= endReprTimePeriod) {
-                    double value = volume.getValue();
-                    List<Integer> destinations;
-                    if (!observedCommutes.keySet().contains(from)) {
-                        destinations = new ArrayList<>();
-                        observedCommutes.put(from, destinations);
+    /**
+     * @param plans the plans of all alternatives, days.length plans per alternative
+     * @return the index of the alternative to be selected according to the plan selection rule
+     */
+    private int selectAlternative(List<? extends Plan> plans, Random random) {
+        int numberOfAlternatives = plans.size() / days.length;
+        switch (planSelection) {
+            case first:
+                return 0;
+            case random:
+                return random.nextInt(numberOfAlternatives);
+            case mostActivities:
+            case fewestActivities:
+                int selectedAlternative = 0;
+                int selectedActivities = -1;
+                for (int alternative = 0; alternative < numberOfAlternatives; alternative++) {
+                    int activities = 0;
+                    for (Plan plan : plans.subList(alternative * days.length, (alternative + 1) * days.length)) {
+                        activities += TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities).size();
                     }
-                    destinations = observedCommutes.get(from);
-                    for (int i = 0; i < value; i++) {
-                        destinations.add(to);
+                    boolean better = planSelection == PlanSelection.mostActivities ? activities > selectedActivities : activities < selectedActivities;
+                    if (selectedActivities < 0 || better) {
+                        selectedAlternative = alternative;
+                        selectedActivities = activities;
                     }
                 }
+                return selectedAlternative;
+            default:
+                throw new IllegalStateException("Unknown plan selection " + planSelection + ".");
+        }
+    }
+
+    int getHomeNode(ActivityFacility homeFacility) {
+        return nodeSnapper.snap(homeFacility);
+    }
+
+    private void removePersonsOutsideShard() {
+        List<Id<Person>> personsOutsideShard = new ArrayList<>();
+        for (Person matsimPerson : scenario.getPopulation().getPersons().values()) {
+            if (!shard.contains(matsimPerson)) {
+                personsOutsideShard.add(matsimPerson.getId());
             }
         }
+        for (Id<Person> personId : personsOutsideShard) {
+            scenario.getPopulation().removePerson(personId);
+        }
+        LOG.info(scenario.getPopulation().getPersons().size() + " persons in " + shard + "; " + personsOutsideShard.size()
+                + " persons removed.");
+    }
+
+    private void removeSkippedPersons() {
+        if (!skippedPersons.isEmpty()) {
+            LOG.warn("Removing " + skippedPersons.size() + " persons without valid actitopp pattern from the population.");
+        }
+        for (Id<Person> personId : skippedPersons) {
+            scenario.getPopulation().removePerson(personId);
+        }
+        skippedPersons.clear();
+    }
+
+    private void createDistanceTable() {
+        LOG.info("Start creating distance table.");
+        this.carGraph = new CompactCarGraph(scenario.getNetwork());
+        this.nodeSnapper = new NetworkNodeSnapper(carGraph);
+        FreespeedTravelTimeAndDisutility freeSpeed = new FreespeedTravelTimeAndDisutility(scenario.getConfig().planCalcScore());
+        this.distanceTable = new MunicipalityDistanceTable(carGraph, freeSpeed, DEFAULT_MAX_RESIDENT_DISTANCE_TREES);
+
+        this.municipalityCenterNodes = new HashMap<>();
+        for (int municipalityId : municipalityRegistry.getMunicipalityIds()) {
+            municipalityCenterNodes.put(municipalityId, nodeSnapper.snap(municipalityRegistry.getCenter(municipalityId)));
+        }
     }
 
     private static int getIntFromBoolean(boolean value) {
@@ -233,91 +951,119 @@ public class RunActitoppForIvtPopulation {
         return result;
     }
 
-    private static HWeekPattern createActitoppWeekPattern(ActitoppPerson actitoppPerson) {
+    private HWeekPattern createWeekPattern(ActitoppPersonInput actitoppInput, RNGHelper scheduleRandom, Random poolRandom) {
+        if (schedulePool == null) {
+            return createActitoppWeekPattern(actitoppInput, scheduleRandom);
+        }
+        boolean validate = poolRandom.nextDouble() < poolValidationShare;
+        HWeekPattern pooledPattern = schedulePool.drawPattern(actitoppInput, poolRandom);
+        if (validate && pooledPattern != null) {
+            HWeekPattern exactPattern = createActitoppWeekPattern(actitoppInput, scheduleRandom);
+            if (exactPattern != null) {
+                poolComparison.addPerson(pooledPattern, exactPattern);
+            }
+        }
+        return pooledPattern;
+    }
+
+    /**
+     * @return the week pattern, or null if actitopp did not create a valid pattern within the maximum number of attempts
+     */
+    HWeekPattern createActitoppWeekPattern(ActitoppPersonInput actitoppInput, RNGHelper randomgenerator) {
+        return createActitoppWeekPattern(actitoppInput, randomgenerator, rejectionStatistics);
+    }
+
+    /**
+     * @param statistics where the attempts are counted
+     */
+    private HWeekPattern createActitoppWeekPattern(ActitoppPersonInput actitoppInput, RNGHelper randomgenerator,
+                                                   ScheduleRejectionStatistics statistics) {
+        ActitoppPerson actitoppPerson = actitoppInput.createActitoppPerson();
+        int attempts = 0;
         boolean scheduleOK = false;
-        while (!scheduleOK) {
+        while (!scheduleOK && attempts < maxScheduleAttempts) {
+            attempts++;
+            long startNanos = System.nanoTime();
             try {
                 // create weekly activity plan
                 actitoppPerson.generateSchedule(fileBase, randomgenerator);
                 scheduleOK = true;
             } catch (InvalidPatternException e) {
-                System.err.println(e.getReason());
-                System.err.println("person involved: " + actitoppPerson.getPersIndex());
+                // Rejections are only counted; they are reported at the end
+            } finally {
+                metrics.addSince(Phase.generateSchedule, startNanos);
             }
         }
+        statistics.addPerson(PersonAttributeClass.of(actitoppInput, distanceBandUpperBoundsKm), attempts, scheduleOK);
+        if (!scheduleOK) {
+            LOG.warn("No valid pattern for person " + actitoppInput.getPersonIndex() + " after " + attempts + " attempts.");
+            return null;
+        }
         return actitoppPerson.getWeekPattern();
     }
 
-    private void createMunicipalityCenterMap(String municipalitiesShapeFile) {
-        LOG.info("Start creating municipality center map.");
-        this.municipalityCenters = new HashMap<>();
-
-        ShapeFileReader sfr = new ShapeFileReader();
-        for (SimpleFeature sf : sfr.getAllFeatures(municipalitiesShapeFile)) {
-            int municapalityId = Integer.valueOf(sf.getAttribute("GMDNR").toString());
-            int zentrumskoordindateEast = Integer.valueOf(sf.getAttribute("E_CNTR").toString());
-            int zentrumskoordindateNorth = Integer.valueOf(sf.getAttribute("N_CNTR").toString());
-            municipalityCenters.put(municapalityId, CoordUtils.createCoord(zentrumskoordindateEast, zentrumskoordindateNorth));
-        }
+    ActitoppPersonInput createActitoppInputSwitzerland(PersonAttributeColumns columns, int row, Coord homeCoord, int homeNode,
+                                                       Random random) {
+        return createActitoppInputSwitzerland(columns, row, homeCoord, homeNode, new HomeDistances(), random);
     }
 
-    private ActitoppPerson createActitoppPersonSwitzerland(Person matsimPerson, Coord homeCoord) {
+    private ActitoppPersonInput createActitoppInputSwitzerland(PersonAttributeColumns columns, int row, Coord homeCoord, int homeNode,
+                                                               HomeDistances homeDistances, Random random) {
         // TODO Find out if we should include houeholds here (also ask Tim)
-        int personIndex = Integer.parseInt(matsimPerson.getId().toString());
-        Attributes attr = matsimPerson.getAttributes();
+        long startNanos = System.nanoTime();
+        long nestedNanos = 0; // Commute sampling and distances are measured as phases of their own
+        int personIndex = columns.getPersonIndex(row);
 
-        int childrenFrom0To10 = getIntFromBoolean((boolean) attr.getAttribute(IvtPopulationParser.AttributeLabels.children_0_10.toString()));
-        int childrenUnder18 = getIntFromBoolean((boolean) attr.getAttribute(IvtPopulationParser.AttributeLabels.children_0_18.toString()));
+        int childrenFrom0To10 = getIntFromBoolean(columns.hasChildrenFrom0To10(row));
+        int childrenUnder18 = getIntFromBoolean(columns.hasChildrenUnder18(row));
 
-        int age = (int) attr.getAttribute(CEMDAPPersonAttributes.age.toString());
+        int age = columns.getAge(row);
 
-        int employment = getEmploymentClassSwitzerland((boolean) attr.getAttribute(IvtPopulationParser.AttributeLabels.employed.toString()), age); // TODO Substantiate asumptions
-        attr.putAttribute(ActitoppAttributeLabels.actitopp_employment_class.toString(), employment);
+        int employment = getEmploymentClassSwitzerland(columns.isEmployed(row), age, random); // TODO Substantiate asumptions
 
-        int gender = getGenderClassSwitzerland(IvtPopulationParser.Gender.valueOf((String) attr.getAttribute(IvtPopulationParser.AttributeLabels.gender.toString())));
-        attr.putAttribute(ActitoppAttributeLabels.actitopp_gender.toString(), gender);
+        int gender = getGenderClassSwitzerland(columns.getGender(row), random);
 
-        int areaType = getAreaTypeSwitzerland(IvtPopulationParser.MunicipalityType.valueOf((String) attr.getAttribute(IvtPopulationParser.AttributeLabels.municipality_type.toString())));
-        attr.putAttribute(ActitoppAttributeLabels.actitopp_area_type.toString(), areaType);
+        int areaType = getAreaTypeSwitzerland(columns.getMunicipalityType(row));
 
-        int numberOfCarsInHousehold = (int) attr.getAttribute(IvtPopulationParser.AttributeLabels.number_of_cars.toString());
+        int numberOfCarsInHousehold = columns.getNumberOfCars(row);
 
-        int homeMunicipality = (int) attr.putAttribute(IvtPopulationParser.AttributeLabels.municipality_id.toString(), employment);
+        int homeMunicipality = columns.getMunicipalityId(row);
         int destination;
+        int workEduMunicipality = MunicipalityRegistry.NO_MUNICIPALITY;
         double commutingDistanceToWork = 0;
         double commutingDistanceToEducation = 0; // TODO
 
         // 1 = full-time occupied; 2 = half-time occupied; 3 = not occupied; 4 = student (school or university);
         // 5 = worker in vocational program; 7 = retired person / pensioner
         if (employment == 1 || employment == 2 || employment == 4 || employment == 5) {
-            List<Integer> outgoingCommutes = observedCommutes.get(homeMunicipality);
-
-            if (outgoingCommutes.isEmpty()) {
+            long commuteStartNanos = System.nanoTime();
+            destination = commuteDestinationSampler.sampleDestination(homeMunicipality, random);
+            nestedNanos += metrics.addSince(Phase.commuteSampling, commuteStartNanos);
+            if (destination == CommuteDestinationSampler.NO_DESTINATION) {
                 destination = homeMunicipality; // If no commute is found, person wokrs from home
                 LOG.warn("No observed commutes: Person ID " + personIndex + "; Home Municipality " + homeMunicipality);
-            } else {
-                int randomInt = random.nextInt(outgoingCommutes.size());
-                destination = outgoingCommutes.get(randomInt);  // don't remove the choices as we pull them.
             }
 
+            long distanceStartNanos = System.nanoTime();
             if (employment == 1 || employment == 2 || employment == 5) {
-                commutingDistanceToWork = getCommutingDistance(homeCoord, destination);
-                attr.putAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString(), destination);
+                commutingDistanceToWork = getCommutingDistance(homeCoord, homeNode, homeMunicipality, destination, homeDistances);
+                workEduMunicipality = destination;
             } else if (employment == 4) {
-                commutingDistanceToEducation = getCommutingDistance(homeCoord, destination);
-                attr.putAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString(), destination);
+                commutingDistanceToEducation = getCommutingDistance(homeCoord, homeNode, homeMunicipality, destination, homeDistances);
+                workEduMunicipality = destination;
             }
+            nestedNanos += metrics.addSince(Phase.dijkstra, distanceStartNanos);
         }
+        columns.setDrawnAttributes(row, employment, gender, areaType, workEduMunicipality);
+        metrics.add(Phase.attributeMapping, System.nanoTime() - startNanos - nestedNanos);
 
-        ActitoppPerson actitoppPerson = new ActitoppPerson(personIndex, childrenFrom0To10, childrenUnder18, age,
+        return new ActitoppPersonInput(personIndex, childrenFrom0To10, childrenUnder18, age,
                 employment, gender, areaType, numberOfCarsInHousehold, commutingDistanceToWork, commutingDistanceToEducation);
-        return actitoppPerson;
     }
 
     // Information from "https://github.com/mobitopp/actitopp"
     // 1 = male; 2 = female
-    private static int getGenderClassSwitzerland(IvtPopulationParser.Gender gender) {
-        Random random = MatsimRandom.getLocalInstance();
+    private static int getGenderClassSwitzerland(IvtPopulationParser.Gender gender, Random random) {
         int genderClass = -1;
         if (IvtPopulationParser.Gender.male == gender) {
             genderClass = 1;
@@ -333,71 +1079,250 @@ public class RunActitoppForIvtPopulation {
         return genderClass;
     }
 
-    private double getCommutingDistance(Coord homeCoord, int destination) {
-        double distance = 0.;
-        Node homeNode = NetworkUtils.getNearestNode(scenario.getNetwork(), homeCoord);
-        Node destinationNode = NetworkUtils.getNearestNode(scenario.getNetwork(), municipalityCenters.get(destination));
+    private double getCommutingDistance(Coord homeCoord, int homeNode, int homeMunicipality, int destination, HomeDistances homeDistances) {
+        double distance = homeDistances.get(homeMunicipality, destination);
+        if (Double.isNaN(distance)) {
+            distance = getCommutingDistance(homeCoord, homeNode, homeMunicipality, destination);
+            homeDistances.put(homeMunicipality, destination, distance);
+        }
+        return distance;
+    }
 
-        LeastCostPathCalculator.Path path = leastCostPathCalculator.calcLeastCostPath(
-                homeNode, destinationNode, 8 * 60. * 60., null, null);
-        for (Link link : path.links) {
-            distance += link.getLength();
+    double getCommutingDistance(Coord homeCoord, int homeNode, int homeMunicipality, int destination) {
+        // Not for commutes within the home municipality, for which the matrix only has the distance 0 from center to center
+        if (commuteSkimMatrix != null && homeMunicipality != destination && commuteSkimMatrix.contains(homeMunicipality)
+                && commuteSkimMatrix.contains(destination)) {
+            double distance = commuteSkimMatrix.getDistance(homeMunicipality, destination);
+            if (!Double.isInfinite(distance)) {
+                return distance / 1000.;
+            }
+        }
+        double distance = distanceTable.getDistance(homeNode, municipalityCenterNodes.get(destination));
+        if (Double.isInfinite(distance)) {
+            LOG.warn("Municipality center of " + destination + " cannot be reached from node " + carGraph.getNode(homeNode).getId() + ". Use beeline distance instead.");
+            distance = CoordUtils.calcEuclideanDistance(homeCoord, municipalityRegistry.getCenter(destination));
         }
         return distance / 1000.;
     }
 
-    private Plan createMatsimPlan(Person matsimPerson, HWeekPattern weekPattern, Population population, Coord homeCoord) {
+    /**
+     * @param workEduMunicipality the municipality of work or education, or {@link MunicipalityRegistry#NO_MUNICIPALITY}
+     * @param day day of the actitopp week (0 = Monday); only activities starting on this day are used
+     */
+    Plan createMatsimPlan(WeekSchedule weekSchedule, Population population, Coord homeCoord, int homeMunicipality,
+                          int workEduMunicipality, int day, Random random) {
+        long startNanos = System.nanoTime();
+        long samplingNanos = 0; // Polygon sampling is measured as a phase of its own
         PopulationFactory populationFactory = population.getFactory();
         Plan matsimPlan = populationFactory.createPlan();
 
-        List<HActivity> activityList = weekPattern.getAllActivities();
-
         Leg matsimLeg = null;
-        for (HActivity actitoppActivity : activityList) {
-            if (actitoppActivity.getDayIndex() == 0) { // Only use activities of first day; until 1,440min
+        Coord previousCoord = null;
+        int previousEndTime_min = 0;
+        for (int activity = 0; activity < weekSchedule.getNumberOfActivities(); activity++) {
+            if (weekSchedule.getDayIndex(activity) == day) { // Only use activities of the given day; until 1,440min
                 // add the previously-built leg, if it exists.
                 if (matsimLeg != null) matsimPlan.addLeg(matsimLeg);
 
-                // actitoppActivity.getType(); // Letter-based type
-                actitoppActivity.getActivityType();
-                String matsimActivityType = transformActType(actitoppActivity.getActivityType());
+                ActiToppActivityTypes matsimActivityType = transformActType(weekSchedule.getActivityType(activity));
                 Coord coord;
-                if (matsimActivityType.equals(ActiToppActivityTypes.home.toString())) {
+                ActivityFacility facility = null;
+                if (matsimActivityType == ActiToppActivityTypes.home) {
                     coord = homeCoord;
-                } else if (matsimActivityType.equals(ActiToppActivityTypes.work.toString()) || matsimActivityType.equals(ActiToppActivityTypes.education.toString())) {
-                    if (matsimPerson.getAttributes().getAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString()) != null) {
-                        int workEduMunId = (int) matsimPerson.getAttributes().getAttribute(ActitoppAttributeLabels.work_edu_municipality_id.toString());
-                        // coord = municipalityCenters.get(workEduMunId); // Don't use municipality center anymore; pick a random point within the municipality.
-                        Point point = GeometryUtils.getRandomPointInFeature( MatsimRandom.getRandom(), mmm.get( workEduMunId ) );;
-                        coord = new Coord( point.getX(), point.getY() ) ;
+                } else if (matsimActivityType == ActiToppActivityTypes.work || matsimActivityType == ActiToppActivityTypes.education) {
+                    int workEduMunId;
+                    if (workEduMunicipality != MunicipalityRegistry.NO_MUNICIPALITY) {
+                        workEduMunId = workEduMunicipality;
                     } else { // This the case when someone performs a work or education activity who is not expected so based on his employment status
-                        int homeMunId = (int) matsimPerson.getAttributes().getAttribute(IvtPopulationParser.AttributeLabels.municipality_id.toString());
-                        // coord = municipalityCenters.get(homeMunId);  // ^^ same
-                        Point point = GeometryUtils.getRandomPointInFeature( MatsimRandom.getRandom(), mmm.get( homeMunId ) );;
-                        coord = new Coord( point.getX(), point.getY() ) ;
+                        workEduMunId = homeMunicipality;
                     }
+                    MunicipalityFacilitySampler facilitySampler = matsimActivityType == ActiToppActivityTypes.work ? workFacilitySampler : educationFacilitySampler;
+                    if (facilitySampler != null) {
+                        long samplingStartNanos = System.nanoTime();
+                        facility = facilitySampler.sampleFacility(workEduMunId, random);
+                        samplingNanos += metrics.addSince(Phase.facilitySampling, samplingStartNanos);
+                    }
+                    if (facility != null) {
+                        coord = facility.getCoord();
+                    } else {
+                        // coord = municipalityCenters.get(workEduMunId); // Don't use municipality center anymore; pick a random point within the municipality.
+                        long samplingStartNanos = System.nanoTime();
+                        coord = municipalityPointSampler.samplePoint(workEduMunId, random);
+                        samplingNanos += metrics.addSince(Phase.polygonSampling, samplingStartNanos);
+                    }
+                } else if (secondaryLocationSampler != null) {
+                    long samplingStartNanos = System.nanoTime();
+                    // Travel time is the gap between the end of the preceding activity and the start of this one
+                    double travelTime = previousCoord == null ? DEFAULT_SECONDARY_TRAVEL_TIME : (weekSchedule.getStartTime(activity) - previousEndTime_min) * 60.;
+                    facility = secondaryLocationSampler.sampleFacility(matsimActivityType,
+                            previousCoord == null ? homeCoord : previousCoord, travelTime, random);
+                    coord = facility == null ? homeCoord : facility.getCoord();
+                    samplingNanos += metrics.addSince(Phase.facilitySampling, samplingStartNanos);
                 } else {
                     coord = homeCoord; // Just as an initial guess
                 }
 
-                Activity matsimActivity = populationFactory.createActivityFromCoord(matsimActivityType, coord);
+                Activity matsimActivity = populationFactory.createActivityFromCoord(matsimActivityType.toString(), coord);
+                if (facility != null) {
+                    matsimActivity.setFacilityId(facility.getId());
+                }
                 matsimPlan.addActivity(matsimActivity);
 
-                int activityEndTime_min = actitoppActivity.getEndTime();
+                int activityEndTime_min = weekSchedule.getEndTime(activity);
                 matsimActivity.setEndTime(activityEndTime_min * 60); // times in ActiTopp in min, in MATSim in s
+                previousCoord = coord;
+                previousEndTime_min = activityEndTime_min;
 
                 // The following leg will be inserted just before the NEXT activity (if there is a next activity)
                 matsimLeg = populationFactory.createLeg(TransportMode.car); // TODO
             }
         }
+        metrics.add(Phase.planBuilding, System.nanoTime() - startNanos - samplingNanos);
+        return matsimPlan;
+    }
+
+    private Plan createHomeOnlyPlan(Population population, Coord homeCoord) {
+        PopulationFactory populationFactory = population.getFactory();
+        Plan matsimPlan = populationFactory.createPlan();
+        matsimPlan.addActivity(populationFactory.createActivityFromCoord(ActiToppActivityTypes.home.toString(), homeCoord));
         return matsimPlan;
     }
 
     private void writeMatsimPlansFile(Population population, String fileName) {
-        PopulationWriter popWriter = new PopulationWriter(population);
-        popWriter.write(fileName);
+        if (shard == null && !separateDayFiles) {
+            PopulationWriter popWriter = new PopulationWriter(population);
+            popWriter.write(fileName);
+        } else {
+            List<Person> persons = new ArrayList<>(population.getPersons().values());
+            if (shard != null) {
+                // Shard outputs are sorted so that they can be merged without loading them
+                persons.sort(PopulationShard.PERSON_ORDER);
+            }
+            DayPopulationWriter popWriter = new DayPopulationWriter(fileName);
+            for (Person matsimPerson : persons) {
+                popWriter.run(matsimPerson);
+            }
+            popWriter.close();
+        }
+    }
+
+    private static String getDayName(int day) {
+        return DayOfWeek.of(day + 1).toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The commuting distances from one home to the destinations drawn for its members. A household has few distinct
+     * destinations, so they are kept in small arrays and searched linearly. As the skim matrix is looked up by the home
+     * municipality, the distances are only kept for one home municipality. Not thread-safe; a household is processed by
+     * one thread.
+     */
+    private static final class HomeDistances {
+        private int homeMunicipality = MunicipalityRegistry.NO_MUNICIPALITY;
+        private int[] destinations = new int[4];
+        private double[] distances = new double[4];
+        private int size;
+
+        /**
+         * @return the distance to the destination, or NaN if it has not been determined yet
+         */
+        private double get(int homeMunicipality, int destination) {
+            if (homeMunicipality != this.homeMunicipality) {
+                return Double.NaN;
+            }
+            for (int i = 0; i < size; i++) {
+                if (destinations[i] == destination) {
+                    return distances[i];
+                }
+            }
+            return Double.NaN;
+        }
+
+        private void put(int homeMunicipality, int destination, double distance) {
+            if (homeMunicipality != this.homeMunicipality) {
+                this.homeMunicipality = homeMunicipality;
+                size = 0;
+            }
+            if (size == destinations.length) {
+                destinations = Arrays.copyOf(destinations, 2 * size);
+                distances = Arrays.copyOf(distances, 2 * size);
+            }
+            destinations[size] = destination;
+            distances[size] = distance;
+            size++;
+        }
+    }
+
+    /**
+     * Writes persons either to one file or, with separate day files, every plan to the file of its day. As the plans of
+     * a person are in the order of {@link #days}, the i-th plan belongs to the i-th day.
+     */
+    private final class DayPopulationWriter {
+        private final StreamingPopulationWriter[] writers;
+
+        private DayPopulationWriter(String fileName) {
+            writers = new StreamingPopulationWriter[separateDayFiles ? days.length : 1];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new StreamingPopulationWriter();
+                writers[i].startStreaming(separateDayFiles ? getDayFileName(fileName, days[i]) : fileName);
+            }
+        }
+
+        private String getDayFileName(String fileName, int day) {
+            int extensionStart = fileName.indexOf(".xml");
+            if (extensionStart < 0) {
+                return fileName + "_" + getDayName(day);
+            }
+            return fileName.substring(0, extensionStart) + "_" + getDayName(day) + fileName.substring(extensionStart);
+        }
+
+        private synchronized void run(Person matsimPerson) {
+            if (!separateDayFiles) {
+                writers[0].run(matsimPerson);
+                return;
+            }
+            PopulationFactory populationFactory = scenario.getPopulation().getFactory();
+            // Plans are grouped by alternative, one plan per day within every alternative
+            List<? extends Plan> plans = matsimPerson.getPlans();
+            int numberOfAlternatives = plans.size() / days.length;
+            int selectedAlternative = plans.indexOf(matsimPerson.getSelectedPlan()) / days.length;
+            for (int i = 0; i < writers.length; i++) {
+                Person dayPerson = populationFactory.createPerson(matsimPerson.getId());
+                for (Map.Entry<String, Object> attribute : matsimPerson.getAttributes().getAsMap().entrySet()) {
+                    dayPerson.getAttributes().putAttribute(attribute.getKey(), attribute.getValue());
+                }
+                for (int alternative = 0; alternative < numberOfAlternatives; alternative++) {
+                    Plan dayPlan = populationFactory.createPlan();
+                    PopulationUtils.copyFromTo(plans.get(alternative * days.length + i), dayPlan);
+                    dayPerson.addPlan(dayPlan);
+                    if (alternative == selectedAlternative) {
+                        dayPerson.setSelectedPlan(dayPlan);
+                    }
+                }
+                writers[i].run(dayPerson);
+            }
+        }
+
+        private void close() {
+            for (StreamingPopulationWriter writer : writers) {
+                writer.closeStreaming();
+            }
+        }
     }
 
+    public enum ScheduleFallback {skip, homeOnly, redrawAttributes}
+
+    /**
+     * Which of several alternative plans of a person is selected initially: the first one, a random one, or the one with
+     * the most or the fewest activities over all days.
+     */
+    public enum PlanSelection {first, random, mostActivities, fewestActivities}
+
+    /**
+     * The person attribute by which the population is split into shards. Splitting by canton or municipality keeps regions
+     * together; splitting by person id hash gives shards of nearly equal size.
+     */
+    public enum ShardKey {canton_id, municipality_id, person_id_hash}
+
     enum ActitoppAttributeLabels {
         actitopp_employment_class, actitopp_gender, actitopp_area_type,
         work_edu_municipality_id
@@ -0,0 +1,199 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The week schedules of an earlier run, looked up by the key of the input they were generated from. The key is a hash of
+ * the actitopp attributes of the person, the seed of the schedule and the settings of actitopp; a schedule is only reused
+ * if the key and the person are the same, i.e. if generating it again would give the same schedule.
+ * <p>
+ * When the cache is created, the schedules of the {@link WeekPatternArchive} are copied to an uncompressed file next to
+ * it, so that the same archive file can be overwritten by the archive of the new run. Only the keys and the positions of
+ * the schedules in that file are held in memory, in an open-addressing table of about 40 bytes per schedule; a lookup
+ * reads one schedule from the file. Lookups may be done from several threads. The file is deleted by {@link #close()}.
+ *
+ * @author dziemke
+ */
+final class ScheduleCache {
+    private static final Logger LOG = Logger.getLogger(ScheduleCache.class);
+
+    private static final ActivityType[] ACTIVITY_TYPES = ActivityType.values();
+
+    private final Path scheduleFile;
+    private final FileChannel channel;
+    // Open addressing with linear probing; NO_KEY marks a free slot
+    private long[] keys = new long[1 << 10];
+    private long[] offsets = new long[keys.length];
+    private int[] lengths = new int[keys.length];
+    private int size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ScheduleCache(String archiveFile) {
+        int[] schedulesWithoutKey = new int[1];
+        try {
+            Path archivePath = Paths.get(archiveFile).toAbsolutePath();
+            scheduleFile = Files.createTempFile(archivePath.getParent(), archivePath.getFileName() + ".", ".cache");
+            scheduleFile.toFile().deleteOnExit();
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            long[] offset = new long[1];
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(scheduleFile), 1 << 16)) {
+                WeekPatternArchive.read(archiveFile, (personId, alternative, workEduMunicipality, key, schedule) -> {
+                    if (key == WeekPatternArchive.NO_KEY) {
+                        schedulesWithoutKey[0]++;
+                        return;
+                    }
+                    try {
+                        record.reset();
+                        writeRecord(recordOut, personId, schedule);
+                        record.writeTo(out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    put(key, offset[0], record.size());
+                    offset[0] += record.size();
+                });
+            }
+            channel = FileChannel.open(scheduleFile, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info(size + " week schedules can be reused; " + schedulesWithoutKey[0] + " schedules without key are not.");
+    }
+
+    /**
+     * @return the schedule generated for the person from the input with this key, or null if there is none
+     */
+    WeekSchedule get(Id<Person> personId, long key) {
+        int slot = key == WeekPatternArchive.NO_KEY ? -1 : findSlot(key);
+        WeekSchedule schedule = slot < 0 || keys[slot] == WeekPatternArchive.NO_KEY ? null : readRecord(slot, personId);
+        if (schedule == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return schedule;
+    }
+
+    void logStatistics() {
+        LOG.info(hits.sum() + " week schedules reused from the cache; " + misses.sum() + " schedules generated as their input changed or was not cached.");
+    }
+
+    void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(scheduleFile);
+        } catch (IOException e) {
+            LOG.warn("Schedule cache file " + scheduleFile + " could not be deleted.", e);
+        }
+    }
+
+    // The slot of the key, or the free slot at which it would be inserted
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        // Keys are hashes already
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != key && keys[slot] != WeekPatternArchive.NO_KEY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // As with a map, a later schedule replaces an earlier one with the same key
+    private void put(long key, long offset, int length) {
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        int slot = findSlot(key);
+        if (keys[slot] == WeekPatternArchive.NO_KEY) {
+            keys[slot] = key;
+            size++;
+        }
+        offsets[slot] = offset;
+        lengths[slot] = length;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        keys = new long[2 * oldKeys.length];
+        offsets = new long[keys.length];
+        lengths = new int[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != WeekPatternArchive.NO_KEY) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                offsets[slot] = oldOffsets[i];
+                lengths[slot] = oldLengths[i];
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Id<Person> personId, WeekSchedule schedule) throws IOException {
+        out.writeUTF(personId.toString());
+        int numberOfActivities = schedule.getNumberOfActivities();
+        out.writeInt(numberOfActivities);
+        for (int i = 0; i < numberOfActivities; i++) {
+            out.writeByte(schedule.getDayIndex(i));
+            out.writeByte(schedule.getActivityType(i).ordinal());
+            out.writeInt(schedule.getStartTime(i));
+            out.writeInt(schedule.getEndTime(i));
+            out.writeInt(schedule.getDuration(i));
+        }
+    }
+
+    // Null if the schedule belongs to another person
+    private WeekSchedule readRecord(int slot, Id<Person> personId) {
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[slot]);
+        try {
+            // Positional reads do not change the channel position and may be done from several threads
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offsets[slot] + buffer.position()) < 0) {
+                    throw new EOFException("Schedule cache file " + scheduleFile + " is truncated.");
+                }
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+            if (!personId.toString().equals(in.readUTF())) {
+                return null;
+            }
+            int numberOfActivities = in.readInt();
+            byte[] dayIndices = new byte[numberOfActivities];
+            ActivityType[] activityTypes = new ActivityType[numberOfActivities];
+            int[] startTimes = new int[numberOfActivities];
+            int[] endTimes = new int[numberOfActivities];
+            int[] durations = new int[numberOfActivities];
+            for (int i = 0; i < numberOfActivities; i++) {
+                dayIndices[i] = in.readByte();
+                activityTypes[i] = ACTIVITY_TYPES[in.readUnsignedByte()];
+                startTimes[i] = in.readInt();
+                endTimes[i] = in.readInt();
+                durations[i] = in.readInt();
+            }
+            return new WeekSchedule(dayIndices, activityTypes, startTimes, endTimes, durations);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
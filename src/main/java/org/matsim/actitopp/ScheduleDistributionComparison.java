@@ -0,0 +1,75 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import edu.kit.ifv.mobitopp.actitopp.HActivity;
+import edu.kit.ifv.mobitopp.actitopp.HWeekPattern;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares week patterns drawn from a {@link SchedulePool} with patterns generated exactly for the same persons. For every
+ * activity type, the mean number of activities and the mean duration per week are compared.
+ *
+ * @author dziemke
+ */
+final class ScheduleDistributionComparison {
+    private static final Logger LOG = Logger.getLogger(ScheduleDistributionComparison.class);
+
+    private final LongAdder persons = new LongAdder();
+    private final LongAdder[] pooledActivities = createAdders();
+    private final LongAdder[] pooledMinutes = createAdders();
+    private final LongAdder[] exactActivities = createAdders();
+    private final LongAdder[] exactMinutes = createAdders();
+
+    private static LongAdder[] createAdders() {
+        LongAdder[] adders = new LongAdder[ActivityType.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void addPerson(HWeekPattern pooledPattern, HWeekPattern exactPattern) {
+        persons.increment();
+        add(pooledPattern, pooledActivities, pooledMinutes);
+        add(exactPattern, exactActivities, exactMinutes);
+    }
+
+    private static void add(HWeekPattern pattern, LongAdder[] activities, LongAdder[] minutes) {
+        for (HActivity activity : pattern.getAllActivities()) {
+            int type = activity.getActivityType().ordinal();
+            activities[type].increment();
+            minutes[type].add(activity.getDuration());
+        }
+    }
+
+    void log() {
+        long count = persons.sum();
+        if (count == 0) {
+            return;
+        }
+        LOG.info("Deviation of pooled from exact schedules, based on " + count + " persons (mean per person and week):");
+        for (ActivityType type : ActivityType.values()) {
+            int i = type.ordinal();
+            if (exactActivities[i].sum() == 0 && pooledActivities[i].sum() == 0) {
+                continue;
+            }
+            LOG.info(type + ": activities " + format(pooledActivities[i].sum(), count) + " (pooled) vs. "
+                    + format(exactActivities[i].sum(), count) + " (exact), " + formatDeviation(pooledActivities[i].sum(), exactActivities[i].sum())
+                    + "; minutes " + format(pooledMinutes[i].sum(), count) + " (pooled) vs. "
+                    + format(exactMinutes[i].sum(), count) + " (exact), " + formatDeviation(pooledMinutes[i].sum(), exactMinutes[i].sum()));
+        }
+    }
+
+    private static String format(long sum, long count) {
+        return String.format("%.2f", (double) sum / count);
+    }
+
+    private static String formatDeviation(long pooled, long exact) {
+        if (exact == 0) {
+            return "no exact reference";
+        }
+        return String.format("%+.1f%%", 100. * (pooled - exact) / exact);
+    }
+}
@@ -0,0 +1,100 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.HWeekPattern;
+import edu.kit.ifv.mobitopp.actitopp.RNGHelper;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Approximates actitopp by generating a fixed number of week patterns per {@link PersonAttributeClass} and letting every
+ * person draw one of the patterns of its class. The patterns of a class are generated when the class is first needed,
+ * from a representative member of the class and with a seed that only depends on the class, so that the pool does not
+ * depend on the order in which persons are processed.
+ *
+ * @author dziemke
+ */
+final class SchedulePool {
+    private static final Logger LOG = Logger.getLogger(SchedulePool.class);
+
+    private final int poolSize;
+    private final double[] distanceBandUpperBoundsKm;
+    private final long randomSeed;
+    private final BiFunction<ActitoppPersonInput, RNGHelper, HWeekPattern> patternGenerator;
+    private final Map<PersonAttributeClass, FutureTask<List<HWeekPattern>>> pools = new ConcurrentHashMap<>();
+    private final AtomicInteger createdPools = new AtomicInteger();
+
+    /**
+     * @param patternGenerator returns a valid pattern for the input or null if none could be created
+     */
+    SchedulePool(int poolSize, double[] distanceBandUpperBoundsKm, long randomSeed,
+                 BiFunction<ActitoppPersonInput, RNGHelper, HWeekPattern> patternGenerator) {
+        this.poolSize = poolSize;
+        this.distanceBandUpperBoundsKm = distanceBandUpperBoundsKm;
+        this.randomSeed = randomSeed;
+        this.patternGenerator = patternGenerator;
+    }
+
+    PersonAttributeClass getAttributeClass(ActitoppPersonInput input) {
+        return PersonAttributeClass.of(input, distanceBandUpperBoundsKm);
+    }
+
+    /**
+     * @return a pattern of the person's class, or null if no valid pattern could be generated for the class
+     */
+    HWeekPattern drawPattern(ActitoppPersonInput input, Random random) {
+        List<HWeekPattern> pool = getPool(getAttributeClass(input));
+        if (pool.isEmpty()) {
+            return null;
+        }
+        return pool.get(random.nextInt(pool.size()));
+    }
+
+    private List<HWeekPattern> getPool(PersonAttributeClass attributeClass) {
+        FutureTask<List<HWeekPattern>> pool = pools.get(attributeClass);
+        if (pool == null) {
+            FutureTask<List<HWeekPattern>> newPool = new FutureTask<>(() -> createPool(attributeClass));
+            pool = pools.putIfAbsent(attributeClass, newPool);
+            if (pool == null) {
+                // Generated outside the map, so that threads needing other classes are not blocked meanwhile
+                pool = newPool;
+                pool.run();
+            }
+        }
+        try {
+            return pool.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Could not create schedule pool for " + attributeClass + ".", e);
+        }
+    }
+
+    private List<HWeekPattern> createPool(PersonAttributeClass attributeClass) {
+        ActitoppPersonInput representativeInput = attributeClass.createRepresentativeInput(distanceBandUpperBoundsKm);
+        List<HWeekPattern> pool = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            RNGHelper randomGenerator = new RNGHelper(ActiToppUtils.createSeed(randomSeed, attributeClass.createKey(), i));
+            HWeekPattern pattern = patternGenerator.apply(representativeInput, randomGenerator);
+            if (pattern != null) {
+                pool.add(pattern);
+            }
+        }
+        int numberOfPools = createdPools.incrementAndGet();
+        if (numberOfPools % 100 == 0) {
+            LOG.info(numberOfPools + " schedule pools created.");
+        }
+        return Collections.unmodifiableList(pool);
+    }
+
+    int getNumberOfPools() {
+        return pools.size();
+    }
+}
@@ -0,0 +1,87 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often actitopp rejects schedules ({@link edu.kit.ifv.mobitopp.actitopp.InvalidPatternException}), per
+ * {@link PersonAttributeClass}, and how many attempts persons need. Can be updated from several threads.
+ *
+ * @author dziemke
+ */
+final class ScheduleRejectionStatistics {
+    private static final Logger LOG = Logger.getLogger(ScheduleRejectionStatistics.class);
+
+    private static final int NUMBER_OF_REPORTED_CLASSES = 20;
+
+    private final String name;
+    private final Map<PersonAttributeClass, ClassCounts> countsPerClass = new ConcurrentHashMap<>();
+    // Bucket i counts persons needing between 2^(i-1) + 1 and 2^i attempts (bucket 0: exactly one attempt)
+    private final AtomicLongArray attemptsHistogram = new AtomicLongArray(32);
+
+    /**
+     * @param name how the counted schedules are called in the log
+     */
+    ScheduleRejectionStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param attempts number of calls of generateSchedule for one person
+     * @param successful whether the last attempt led to a valid schedule
+     */
+    void addPerson(PersonAttributeClass attributeClass, int attempts, boolean successful) {
+        ClassCounts counts = countsPerClass.computeIfAbsent(attributeClass, k -> new ClassCounts());
+        counts.persons.increment();
+        counts.rejections.add(successful ? attempts - 1 : attempts);
+        if (!successful) {
+            counts.failures.increment();
+        }
+        attemptsHistogram.incrementAndGet(32 - Integer.numberOfLeadingZeros(attempts - 1));
+    }
+
+    void log() {
+        long persons = 0;
+        long rejections = 0;
+        long failures = 0;
+        for (ClassCounts counts : countsPerClass.values()) {
+            persons += counts.persons.sum();
+            rejections += counts.rejections.sum();
+            failures += counts.failures.sum();
+        }
+        LOG.info(name + ": " + persons + " persons; " + rejections + " rejected patterns; " + failures
+                + " persons without valid pattern after all attempts.");
+
+        for (int i = 0; i < attemptsHistogram.length(); i++) {
+            long count = attemptsHistogram.get(i);
+            if (count > 0) {
+                int lowerBound = i == 0 ? 1 : (1 << (i - 1)) + 1;
+                int upperBound = i == 0 ? 1 : 1 << i;
+                LOG.info("Attempts " + lowerBound + "-" + upperBound + ": " + count + " persons.");
+            }
+        }
+
+        List<Map.Entry<PersonAttributeClass, ClassCounts>> entries = new ArrayList<>(countsPerClass.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().rejections.sum(), a.getValue().rejections.sum()));
+        for (Map.Entry<PersonAttributeClass, ClassCounts> entry : entries.subList(0, Math.min(NUMBER_OF_REPORTED_CLASSES, entries.size()))) {
+            ClassCounts counts = entry.getValue();
+            if (counts.rejections.sum() == 0) {
+                break;
+            }
+            LOG.info("Rejections for " + entry.getKey() + ": " + counts.rejections.sum() + " for " + counts.persons.sum()
+                    + " persons; " + counts.failures.sum() + " persons without valid pattern.");
+        }
+    }
+
+    private static final class ClassCounts {
+        private final LongAdder persons = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+}
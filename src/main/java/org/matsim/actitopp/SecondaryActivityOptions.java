@@ -0,0 +1,74 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.facilities.MatsimFacilitiesReader;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Gives facilities an activity option for leisure, shopping or other, drawn with equal probability, as long as the
+ * facility input has no such options. The draw of a facility only depends on the seed and its id, so the same facilities
+ * get the same options in {@link RunActitoppForIvtPopulation} and in {@code RunMatsim}, whichever program assigns them
+ * and in whatever order the facilities are read. Facilities that already offer one of these activities are kept as they
+ * are. Preferably, the options are assigned once with {@link #main(String[])} and written to the facilities file both
+ * programs read.
+ * <p>
+ * Earlier versions of {@code RunMatsim} drew the options with {@code MatsimRandom} for all facilities; runs on the same
+ * input therefore get different options than before.
+ *
+ * @author dziemke
+ */
+public final class SecondaryActivityOptions {
+    private static final Logger LOG = Logger.getLogger(SecondaryActivityOptions.class);
+
+    public static final long DEFAULT_SEED = 4711;
+
+    private SecondaryActivityOptions() {
+    }
+
+    public static void main(String[] args) {
+        String folderRoot = "../../shared-svn/projects/snf-big-data/data/scenario/full-ch/";
+        String facilitiesFile = folderRoot + "facilities_1pct.xml.gz";
+        String outputFacilitiesFile = folderRoot + "facilities_1pct_secondary.xml.gz";
+
+        Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+        new MatsimFacilitiesReader(scenario).readFile(facilitiesFile);
+        assignRandomly(scenario.getActivityFacilities(), DEFAULT_SEED);
+        new FacilitiesWriter(scenario.getActivityFacilities()).write(outputFacilitiesFile);
+    }
+
+    /**
+     * @return the number of facilities that were given an option
+     */
+    public static int assignRandomly(ActivityFacilities facilities, long seed) {
+        List<ActiToppActivityTypes> activityTypes = SecondaryLocationSampler.getSecondaryActivityTypes();
+        int assigned = 0;
+        for (ActivityFacility facility : facilities.getFacilities().values()) {
+            if (offersAny(facility, activityTypes)) {
+                continue;
+            }
+            Random random = new Random(ActiToppUtils.createSeed(seed, facility.getId().toString().hashCode(), 0));
+            ActiToppActivityTypes activityType = activityTypes.get(random.nextInt(activityTypes.size()));
+            facility.addActivityOption(facilities.getFactory().createActivityOption(activityType.toString()));
+            assigned++;
+        }
+        LOG.info(assigned + " of " + facilities.getFacilities().size() + " facilities were given a leisure, shopping or other option.");
+        return assigned;
+    }
+
+    private static boolean offersAny(ActivityFacility facility, List<ActiToppActivityTypes> activityTypes) {
+        for (ActiToppActivityTypes activityType : activityTypes) {
+            if (facility.getActivityOptions().containsKey(activityType.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
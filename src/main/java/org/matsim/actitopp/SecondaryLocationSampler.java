@@ -0,0 +1,96 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Samples facilities for activities without fixed location (leisure, shopping, other). For every such activity type, the
+ * facilities offering it are held in a spatial index. A point is drawn uniformly in the disk of the distance that can be
+ * covered in the travel time available before the activity, and the facility closest to it is taken if it lies within the
+ * disk. Thus no list of all facilities in the disk is built; facilities are drawn in proportion to the part of the disk
+ * closer to them than to other facilities, i.e. every part of the reachable area is equally likely, not every facility.
+ * If no draw hits a facility within the disk, the facility closest to the origin is taken.
+ *
+ * @author dziemke
+ */
+final class SecondaryLocationSampler {
+    private static final Logger LOG = Logger.getLogger(SecondaryLocationSampler.class);
+    private static final int MAX_POINT_DRAWS = 10;
+
+    private final Map<ActiToppActivityTypes, QuadTree<ActivityFacility>> facilityTrees = new EnumMap<>(ActiToppActivityTypes.class);
+    private final double beelineSpeed;
+
+    /**
+     * @param beelineSpeed speed in m/s at which the beeline distance is covered, to convert travel times to search radii
+     */
+    SecondaryLocationSampler(ActivityFacilities facilities, double beelineSpeed) {
+        this.beelineSpeed = beelineSpeed;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (ActivityFacility facility : facilities.getFacilities().values()) {
+            minX = Math.min(minX, facility.getCoord().getX());
+            minY = Math.min(minY, facility.getCoord().getY());
+            maxX = Math.max(maxX, facility.getCoord().getX());
+            maxY = Math.max(maxY, facility.getCoord().getY());
+        }
+        for (ActiToppActivityTypes activityType : getSecondaryActivityTypes()) {
+            QuadTree<ActivityFacility> facilityTree = new QuadTree<>(minX, minY, maxX, maxY);
+            for (ActivityFacility facility : facilities.getFacilities().values()) {
+                if (facility.getActivityOptions().containsKey(activityType.toString())) {
+                    facilityTree.put(facility.getCoord().getX(), facility.getCoord().getY(), facility);
+                }
+            }
+            if (facilityTree.size() == 0) {
+                throw new IllegalArgumentException("No facility offers activity type " + activityType + ". Assign the options "
+                        + "to the facilities first, e.g. with " + SecondaryActivityOptions.class.getSimpleName() + ".");
+            }
+            LOG.info(facilityTree.size() + " facilities for activity type " + activityType + ".");
+            facilityTrees.put(activityType, facilityTree);
+        }
+    }
+
+    static List<ActiToppActivityTypes> getSecondaryActivityTypes() {
+        List<ActiToppActivityTypes> activityTypes = new ArrayList<>();
+        activityTypes.add(ActiToppActivityTypes.leisure);
+        activityTypes.add(ActiToppActivityTypes.shopping);
+        activityTypes.add(ActiToppActivityTypes.other);
+        return activityTypes;
+    }
+
+    /**
+     * @param origin location of the preceding activity
+     * @param travelTime travel time in seconds available to reach the activity
+     * @return a facility offering the activity type, or null if there is none
+     */
+    ActivityFacility sampleFacility(ActiToppActivityTypes activityType, Coord origin, double travelTime, Random random) {
+        QuadTree<ActivityFacility> facilityTree = facilityTrees.get(activityType);
+        if (facilityTree == null || facilityTree.size() == 0) {
+            return null;
+        }
+        double radius = Math.max(0., travelTime) * beelineSpeed;
+        for (int draw = 0; draw < MAX_POINT_DRAWS; draw++) {
+            // Uniform in the disk: the square root makes the density independent of the distance from the origin
+            double distance = radius * Math.sqrt(random.nextDouble());
+            double angle = 2. * Math.PI * random.nextDouble();
+            double x = origin.getX() + distance * Math.cos(angle);
+            double y = origin.getY() + distance * Math.sin(angle);
+            ActivityFacility facility = facilityTree.getClosest(x, y);
+            if (CoordUtils.calcEuclideanDistance(origin, facility.getCoord()) <= radius) {
+                return facility;
+            }
+        }
+        return facilityTree.getClosest(origin.getX(), origin.getY());
+    }
+}
@@ -0,0 +1,185 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.misc.Counter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges the plans files written by the shards of a sharded {@link RunActitoppForIvtPopulation} run into one plans file.
+ * Every shard file must be sorted by {@link PopulationShard#PERSON_ORDER}; the merged file is sorted in the same way,
+ * so it does not depend on the number of shards. Shard files are read concurrently and never held in memory completely.
+ * The merged file is written to a temporary file that only replaces the output file once all shards were merged.
+ *
+ * @author dziemke
+ */
+public final class ShardMerger {
+    private static final Logger LOG = Logger.getLogger(ShardMerger.class);
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    public static void main(String[] args) {
+        // Usage: outputFile shardFile1 shardFile2 ...
+        // String folderRoot = "../../shared-svn/projects/snf-big-data/data/scenario/full-ch/";
+        // args = new String[]{folderRoot + "population_plans.xml.gz", folderRoot + "population_plans_shard-0.xml.gz",
+        //         folderRoot + "population_plans_shard-1.xml.gz"};
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: ShardMerger outputFile shardFile...");
+        }
+        merge(Arrays.asList(args).subList(1, args.length), args[0]);
+    }
+
+    public static void merge(List<String> shardFiles, String outputFile) {
+        LOG.info("Merging " + shardFiles.size() + " shard files into " + outputFile);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<ShardReader> readers = new ArrayList<>();
+        for (String shardFile : shardFiles) {
+            ShardReader reader = new ShardReader(shardFile, failure);
+            reader.start();
+            readers.add(reader);
+        }
+
+        // The file name must keep its extension, as the writer derives the compression from it
+        Path outputPath = Paths.get(outputFile).toAbsolutePath();
+        Path temporaryFile = outputPath.resolveSibling("tmp-" + outputPath.getFileName());
+        StreamingPopulationWriter writer = new StreamingPopulationWriter();
+        writer.startStreaming(temporaryFile.toString());
+        Counter counter = new Counter("Merged person # ");
+        boolean streaming = true;
+        boolean merged = false;
+        try {
+            PriorityQueue<ShardReader> heads = new PriorityQueue<>((a, b) -> PopulationShard.PERSON_ORDER.compare(a.head, b.head));
+            for (ShardReader reader : readers) {
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            Person lastPerson = null;
+            while (!heads.isEmpty()) {
+                ShardReader reader = heads.poll();
+                if (lastPerson != null && PopulationShard.PERSON_ORDER.compare(lastPerson, reader.head) == 0) {
+                    throw new IllegalStateException("Person " + reader.head.getId() + " is contained in more than one shard.");
+                }
+                lastPerson = reader.head;
+                writer.run(reader.head);
+                counter.incCounter();
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            streaming = false;
+            writer.closeStreaming();
+            if (failure.get() != null) {
+                throw new RuntimeException("Reading a shard file failed.", failure.get());
+            }
+            Files.move(temporaryFile, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            merged = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while merging shards.", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ShardReader reader : readers) {
+                reader.interrupt();
+            }
+            if (!merged) {
+                // Do not leave a truncated, but well-formed population behind
+                if (streaming) {
+                    try {
+                        writer.closeStreaming();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not close " + temporaryFile, e);
+                    }
+                }
+                deleteQuietly(temporaryFile);
+            }
+        }
+        counter.printCounter();
+        LOG.info("Merging shards done.");
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Could not delete " + file, e);
+        }
+    }
+
+    private static final class ShardReader extends Thread {
+        private final String shardFile;
+        private final AtomicReference<Throwable> failure;
+        // Persons are wrapped in arrays, as a blocking queue cannot hold null, which marks the end of the file
+        private final BlockingQueue<Person[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private Person head;
+
+        private ShardReader(String shardFile, AtomicReference<Throwable> failure) {
+            super("shard-reader-" + shardFile);
+            this.shardFile = shardFile;
+            this.failure = failure;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+                StreamingPopulationReader reader = new StreamingPopulationReader(scenario);
+                reader.addAlgorithm(person -> {
+                    try {
+                        queue.put(new Person[]{person});
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                });
+                reader.readFile(shardFile);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                try {
+                    queue.put(new Person[]{null});
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Takes the next person of this shard as head.
+         *
+         * @return false if the shard has no more persons
+         */
+        private boolean advance() throws InterruptedException {
+            Person previous = head;
+            head = queue.take()[0];
+            if (head == null) {
+                return false;
+            }
+            if (previous != null && PopulationShard.PERSON_ORDER.compare(previous, head) > 0) {
+                throw new IllegalStateException("Shard file " + shardFile + " is not sorted by person id: " + head.getId()
+                        + " follows " + previous.getId() + ".");
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.matsim.actitopp;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.utils.misc.Counter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Passes persons from a streaming reader through several worker threads to a writer. Persons are written in the order in
+ * which they were read. At most capacity persons are between reader and writer at any time; the reader blocks when
+ * this limit is reached, so memory use does not depend on the size of the population.
+ *
+ * @author dziemke
+ */
+final class StreamingPersonPipeline implements PersonAlgorithm {
+    private static final Logger LOG = Logger.getLogger(StreamingPersonPipeline.class);
+
+    private static final Item END = new Item(-1, null);
+
+    private final Predicate<Person> processor;
+    private final Consumer<Person> writer;
+    private final int numberOfWorkers;
+    private final Semaphore permits;
+    private final BlockingQueue<Item> inputQueue;
+    private final BlockingQueue<Item> outputQueue = new LinkedBlockingQueue<>();
+    private final ExecutorService workers;
+    private final Thread writerThread;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long nextSequenceNumber = 0;
+
+    /**
+     * @param processor processes a person; returns false if the person is not to be written
+     * @param writer writes a person; only called from one thread
+     */
+    StreamingPersonPipeline(int numberOfWorkers, int capacity, Predicate<Person> processor, Consumer<Person> writer) {
+        this.processor = processor;
+        this.writer = writer;
+        this.numberOfWorkers = Math.max(1, numberOfWorkers);
+        this.permits = new Semaphore(capacity);
+        this.inputQueue = new ArrayBlockingQueue<>(capacity + this.numberOfWorkers);
+
+        this.workers = Executors.newFixedThreadPool(this.numberOfWorkers);
+        for (int i = 0; i < this.numberOfWorkers; i++) {
+            workers.execute(this::processItems);
+        }
+        this.writerThread = new Thread(this::writeItems, "actitopp-writer");
+        writerThread.start();
+    }
+
+    /**
+     * Called by the reader for every person.
+     */
+    @Override
+    public void run(Person person) {
+        try {
+            while (!permits.tryAcquire(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+            checkFailure();
+            inputQueue.put(new Item(nextSequenceNumber++, person));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the pipeline.", e);
+        }
+    }
+
+    /**
+     * Waits until all persons passed to {@link #run(Person)} are written.
+     */
+    void finish() {
+        try {
+            for (int i = 0; i < numberOfWorkers; i++) {
+                inputQueue.put(END);
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+            outputQueue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the pipeline.", e);
+        } finally {
+            workers.shutdownNow();
+        }
+        checkFailure();
+    }
+
+    private void processItems() {
+        try {
+            Item item;
+            while ((item = inputQueue.take()) != END) {
+                item.keep = processor.test(item.person);
+                outputQueue.put(item);
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void writeItems() {
+        Counter counter = new Counter("Written person # ");
+        Map<Long, Item> pendingItems = new HashMap<>();
+        long nextToWrite = 0;
+        try {
+            Item item;
+            while ((item = outputQueue.take()) != END) {
+                pendingItems.put(item.sequenceNumber, item);
+                Item next;
+                while ((next = pendingItems.remove(nextToWrite)) != null) {
+                    if (next.keep) {
+                        writer.accept(next.person);
+                        counter.incCounter();
+                    }
+                    nextToWrite++;
+                    permits.release();
+                }
+            }
+            counter.printCounter();
+            if (!pendingItems.isEmpty()) {
+                throw new IllegalStateException(pendingItems.size() + " persons were processed but not written.");
+            }
+        } catch (Throwable e) {
+            LOG.error("Writing persons failed.", e);
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void checkFailure() {
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            workers.shutdownNow();
+            writerThread.interrupt();
+            throw new RuntimeException("Streaming schedule generation failed.", throwable);
+        }
+    }
+
+    private static final class Item {
+        private final long sequenceNumber;
+        private final Person person;
+        private boolean keep;
+
+        private Item(long sequenceNumber, Person person) {
+            this.sequenceNumber = sequenceNumber;
+            this.person = person;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archive of the week schedules generated by actitopp, so that plans can be built again (e.g. with other location rules
+ * or days) without running actitopp again. Schedules are stored in blocks; within a block, every attribute is stored as
+ * one column, so that similar values are adjacent and compress well. Layout (gzip-compressed, big-endian):
+ * <pre>
+ * int magic, int version, int numberOfActivityTypes, UTF[numberOfActivityTypes] activity type names
+ * blocks, each: int numberOfSchedules (0 ends the archive), int numberOfActivities,
+ *   UTF[numberOfSchedules] person ids, byte[numberOfSchedules] alternatives, long[numberOfSchedules] keys,
+ *   int[numberOfSchedules] work/education municipalities, int[numberOfSchedules] numbers of activities,
+ *   byte[numberOfActivities] day indices, byte[numberOfActivities] activity types (index into the names above),
+ *   int[numberOfActivities] start times, int[numberOfActivities] end times, int[numberOfActivities] durations
+ * </pre>
+ * Schedules are in the order in which they were added, which depends on the threads when generating in parallel. The key
+ * of a schedule identifies the input from which it was generated (see {@link ScheduleCache}); archives of version 1 have
+ * no keys and are read with {@link #NO_KEY}. The archive is written to a temporary file that replaces the archive file
+ * only when complete.
+ *
+ * @author dziemke
+ */
+final class WeekPatternArchive {
+    private static final Logger LOG = Logger.getLogger(WeekPatternArchive.class);
+
+    static final int NO_MUNICIPALITY = MunicipalityRegistry.NO_MUNICIPALITY;
+    static final long NO_KEY = 0L;
+    // Alternatives are stored as one unsigned byte
+    static final int MAX_ALTERNATIVES = 255;
+
+    private static final int MAGIC = 0x57454b50; // "WEKP"
+    private static final int VERSION = 2;
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final ActivityType[] ACTIVITY_TYPES = ActivityType.values();
+
+    private WeekPatternArchive() {
+    }
+
+    interface ScheduleHandler {
+        /**
+         * @param workEduMunicipality the municipality of work or education, or {@link #NO_MUNICIPALITY}
+         * @param key the key of the input the schedule was generated from, or {@link #NO_KEY}
+         */
+        void handle(Id<Person> personId, int alternative, int workEduMunicipality, long key, WeekSchedule schedule);
+    }
+
+    /**
+     * Collects schedules and writes them block by block. Schedules may be added from several threads.
+     */
+    static final class Writer implements Closeable {
+        private final File file;
+        private final File temporaryFile;
+        private final DataOutputStream out;
+        private final List<String> personIds = new ArrayList<>(BLOCK_SIZE);
+        private final List<Integer> alternatives = new ArrayList<>(BLOCK_SIZE);
+        private final List<Integer> workEduMunicipalities = new ArrayList<>(BLOCK_SIZE);
+        private final List<Long> keys = new ArrayList<>(BLOCK_SIZE);
+        private final List<WeekSchedule> schedules = new ArrayList<>(BLOCK_SIZE);
+        private long numberOfSchedules = 0;
+
+        Writer(String archiveFile) {
+            file = new File(archiveFile);
+            temporaryFile = new File(archiveFile + ".tmp");
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile), 1 << 16)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ACTIVITY_TYPES.length);
+                for (ActivityType activityType : ACTIVITY_TYPES) {
+                    out.writeUTF(activityType.name());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        synchronized void add(Id<Person> personId, int alternative, int workEduMunicipality, long key, WeekSchedule schedule) {
+            personIds.add(personId.toString());
+            alternatives.add(alternative);
+            workEduMunicipalities.add(workEduMunicipality);
+            keys.add(key);
+            schedules.add(schedule);
+            if (schedules.size() == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() {
+            try {
+                int numberOfActivities = 0;
+                for (WeekSchedule schedule : schedules) {
+                    numberOfActivities += schedule.getNumberOfActivities();
+                }
+                out.writeInt(schedules.size());
+                out.writeInt(numberOfActivities);
+                for (String personId : personIds) {
+                    out.writeUTF(personId);
+                }
+                for (int alternative : alternatives) {
+                    out.writeByte(alternative);
+                }
+                for (long key : keys) {
+                    out.writeLong(key);
+                }
+                for (int workEduMunicipality : workEduMunicipalities) {
+                    out.writeInt(workEduMunicipality);
+                }
+                for (WeekSchedule schedule : schedules) {
+                    out.writeInt(schedule.getNumberOfActivities());
+                }
+                for (WeekSchedule schedule : schedules) {
+                    for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+                        out.writeByte(schedule.getDayIndex(i));
+                    }
+                }
+                for (WeekSchedule schedule : schedules) {
+                    for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+                        out.writeByte(schedule.getActivityType(i).ordinal());
+                    }
+                }
+                for (WeekSchedule schedule : schedules) {
+                    for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+                        out.writeInt(schedule.getStartTime(i));
+                    }
+                }
+                for (WeekSchedule schedule : schedules) {
+                    for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+                        out.writeInt(schedule.getEndTime(i));
+                    }
+                }
+                for (WeekSchedule schedule : schedules) {
+                    for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+                        out.writeInt(schedule.getDuration(i));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            numberOfSchedules += schedules.size();
+            personIds.clear();
+            alternatives.clear();
+            workEduMunicipalities.clear();
+            keys.clear();
+            schedules.clear();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!schedules.isEmpty()) {
+                writeBlock();
+            }
+            try {
+                out.writeInt(0);
+                out.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!temporaryFile.renameTo(file)) {
+                file.delete();
+                if (!temporaryFile.renameTo(file)) {
+                    throw new UncheckedIOException(new IOException("Could not move " + temporaryFile + " to " + file));
+                }
+            }
+            LOG.info(numberOfSchedules + " week schedules archived.");
+        }
+    }
+
+    /**
+     * Reads all schedules of the archive, in the order in which they were written, and passes them to the handler.
+     */
+    static void read(String archiveFile, ScheduleHandler handler) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(archiveFile), 1 << 16)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException(archiveFile + " is not a week pattern archive.");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException(archiveFile + " is a week pattern archive of unsupported version " + version + ".");
+            }
+            ActivityType[] activityTypes = new ActivityType[in.readInt()];
+            for (int i = 0; i < activityTypes.length; i++) {
+                activityTypes[i] = ActivityType.valueOf(in.readUTF());
+            }
+
+            long numberOfSchedules = 0;
+            int blockSize;
+            while ((blockSize = in.readInt()) > 0) {
+                int numberOfActivities = in.readInt();
+                String[] personIds = new String[blockSize];
+                for (int i = 0; i < blockSize; i++) {
+                    personIds[i] = in.readUTF();
+                }
+                int[] alternatives = new int[blockSize];
+                for (int i = 0; i < blockSize; i++) {
+                    alternatives[i] = in.readUnsignedByte();
+                }
+                long[] keys = new long[blockSize];
+                if (version >= 2) {
+                    for (int i = 0; i < blockSize; i++) {
+                        keys[i] = in.readLong();
+                    }
+                }
+                int[] workEduMunicipalities = readInts(in, blockSize);
+                int[] activityCounts = readInts(in, blockSize);
+                byte[] dayIndices = new byte[numberOfActivities];
+                in.readFully(dayIndices);
+                byte[] typeIndices = new byte[numberOfActivities];
+                in.readFully(typeIndices);
+                int[] startTimes = readInts(in, numberOfActivities);
+                int[] endTimes = readInts(in, numberOfActivities);
+                int[] durations = readInts(in, numberOfActivities);
+
+                int firstActivity = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int endActivity = firstActivity + activityCounts[i];
+                    ActivityType[] scheduleTypes = new ActivityType[activityCounts[i]];
+                    for (int a = firstActivity; a < endActivity; a++) {
+                        scheduleTypes[a - firstActivity] = activityTypes[typeIndices[a]];
+                    }
+                    WeekSchedule schedule = new WeekSchedule(Arrays.copyOfRange(dayIndices, firstActivity, endActivity), scheduleTypes,
+                            Arrays.copyOfRange(startTimes, firstActivity, endActivity), Arrays.copyOfRange(endTimes, firstActivity, endActivity),
+                            Arrays.copyOfRange(durations, firstActivity, endActivity));
+                    handler.handle(Id.createPersonId(personIds[i]), alternatives[i], workEduMunicipalities[i], keys[i], schedule);
+                    firstActivity = endActivity;
+                }
+                numberOfSchedules += blockSize;
+            }
+            LOG.info(numberOfSchedules + " week schedules read from " + archiveFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int length) throws IOException {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
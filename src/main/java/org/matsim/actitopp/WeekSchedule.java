@@ -0,0 +1,83 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import edu.kit.ifv.mobitopp.actitopp.HActivity;
+import edu.kit.ifv.mobitopp.actitopp.HWeekPattern;
+
+import java.util.List;
+
+/**
+ * The activities of an actitopp week pattern, reduced to what plans are built from: day, type, start time, end time and
+ * duration, in the order of the pattern. Times are in minutes, as in actitopp; start and end time are measured from
+ * midnight of the activity's day. Unlike an {@link HWeekPattern}, a week schedule can be stored in and read from a
+ * {@link WeekPatternArchive}. A schedule without activities stands for a person without valid pattern.
+ *
+ * @author dziemke
+ */
+final class WeekSchedule {
+    static final WeekSchedule EMPTY = new WeekSchedule(new byte[0], new ActivityType[0], new int[0], new int[0], new int[0]);
+
+    private final byte[] dayIndices;
+    private final ActivityType[] activityTypes;
+    private final int[] startTimes;
+    private final int[] endTimes;
+    private final int[] durations;
+
+    WeekSchedule(byte[] dayIndices, ActivityType[] activityTypes, int[] startTimes, int[] endTimes, int[] durations) {
+        this.dayIndices = dayIndices;
+        this.activityTypes = activityTypes;
+        this.startTimes = startTimes;
+        this.endTimes = endTimes;
+        this.durations = durations;
+    }
+
+    static WeekSchedule of(HWeekPattern weekPattern) {
+        List<HActivity> activities = weekPattern.getAllActivities();
+        int size = activities.size();
+        byte[] dayIndices = new byte[size];
+        ActivityType[] activityTypes = new ActivityType[size];
+        int[] startTimes = new int[size];
+        int[] endTimes = new int[size];
+        int[] durations = new int[size];
+        for (int i = 0; i < size; i++) {
+            HActivity activity = activities.get(i);
+            dayIndices[i] = (byte) activity.getDayIndex();
+            activityTypes[i] = activity.getActivityType();
+            startTimes[i] = activity.getStartTime();
+            endTimes[i] = activity.getEndTime();
+            durations[i] = activity.getDuration();
+        }
+        return new WeekSchedule(dayIndices, activityTypes, startTimes, endTimes, durations);
+    }
+
+    boolean isEmpty() {
+        return dayIndices.length == 0;
+    }
+
+    int getNumberOfActivities() {
+        return dayIndices.length;
+    }
+
+    /**
+     * @return the day of the actitopp week (0 = Monday) on which the activity starts
+     */
+    int getDayIndex(int activity) {
+        return dayIndices[activity];
+    }
+
+    ActivityType getActivityType(int activity) {
+        return activityTypes[activity];
+    }
+
+    int getStartTime(int activity) {
+        return startTimes[activity];
+    }
+
+    int getEndTime(int activity) {
+        return endTimes[activity];
+    }
+
+    int getDuration(int activity) {
+        return durations[activity];
+    }
+}
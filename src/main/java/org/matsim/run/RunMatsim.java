@@ -20,6 +20,7 @@ package org.matsim.run;
 
 import com.google.inject.Singleton;
 import org.apache.log4j.Logger;
+import org.matsim.actitopp.SecondaryActivityOptions;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
@@ -39,7 +40,6 @@ import org.matsim.core.controler.Controler;
 import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
 import org.matsim.core.controler.listener.StartupListener;
 import org.matsim.core.gbl.Gbl;
-import org.matsim.core.gbl.MatsimRandom;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule.DefaultSelector;
@@ -134,53 +134,49 @@ public class RunMatsim {
 		new org.matsim.core.network.algorithms.NetworkCleaner().run(scenario.getNetwork());
 
 		PopulationFactory pf = scenario.getPopulation().getFactory();;
+		int maxNumberOfPlans = 0;
 		for( Person person : scenario.getPopulation().getPersons().values() ){
-			final List<PlanElement> planElements = person.getSelectedPlan().getPlanElements();
-			// find home coordinate:
-			Coord homeCoord = null ;
-			for( PlanElement planElement : planElements ){
-				if ( planElement instanceof Activity ) {
-					if ( ((Activity) planElement).getType().equals( "home" ) ) {
-						homeCoord = ((Activity) planElement).getCoord() ;
-						break ;
+			// All plans, as actitopp may create several alternative plans per person
+			for ( Plan plan : person.getPlans() ) {
+				final List<PlanElement> planElements = plan.getPlanElements();
+				// find home coordinate:
+				Coord homeCoord = null ;
+				for( PlanElement planElement : planElements ){
+					if ( planElement instanceof Activity ) {
+						if ( ((Activity) planElement).getType().equals( "home" ) ) {
+							homeCoord = ((Activity) planElement).getCoord() ;
+							break ;
+						}
 					}
 				}
-			}
-			Gbl.assertNotNull( homeCoord );
+				Gbl.assertNotNull( homeCoord );
 
-			// remove last planElement if leg:
-			if ( planElements.get( planElements.size()-1) instanceof Leg ) {
-				planElements.remove( planElements.size()-1 ) ;
-			}
+				// remove last planElement if leg:
+				if ( planElements.get( planElements.size()-1) instanceof Leg ) {
+					planElements.remove( planElements.size()-1 ) ;
+				}
 
-			// bring people home if not at home; locachoice has problems if first/last act are not of "fixed" type
-			Activity lastAct = (Activity) planElements.get( planElements.size()-1 );
-			if ( !lastAct.getType().equals( "home" ) ) {
-				lastAct.setEndTime( 24.*3600.-1 );
-				Leg leg = pf.createLeg( "car" ) ;
-				planElements.add(leg) ;
-				Activity homeAct = pf.createActivityFromCoord( "home", homeCoord ) ;
-				planElements.add(homeAct) ;
+				// bring people home if not at home; locachoice has problems if first/last act are not of "fixed" type
+				Activity lastAct = (Activity) planElements.get( planElements.size()-1 );
+				if ( !lastAct.getType().equals( "home" ) ) {
+					lastAct.setEndTime( 24.*3600.-1 );
+					Leg leg = pf.createLeg( "car" ) ;
+					planElements.add(leg) ;
+					Activity homeAct = pf.createActivityFromCoord( "home", homeCoord ) ;
+					planElements.add(homeAct) ;
+				}
 			}
+			maxNumberOfPlans = Math.max( maxNumberOfPlans, person.getPlans().size() );
 		}
-
-		Random rnd = MatsimRandom.getLocalInstance();;
-		final ActivityFacilities facilities = scenario.getActivityFacilities();
-		ActivityFacilitiesFactory ff = facilities.getFactory();;
-		for( ActivityFacility facility : facilities.getFacilities().values()) {
-			double rrr = rnd.nextDouble();;
-			if ( rrr < 0.33 ) {
-				ActivityOption option = ff.createActivityOption( "shopping" ) ;
-				facility.addActivityOption( option );
-			} else if ( rrr < 0.66 ) {
-				ActivityOption option = ff.createActivityOption( "leisure" ) ;
-				facility.addActivityOption( option );
-			} else {
-				ActivityOption option = ff.createActivityOption( "other" ) ;
-				facility.addActivityOption( option );
-			}
+		// Otherwise MATSim drops plans beyond its plan memory (by default 5) before the first iteration
+		if ( maxNumberOfPlans > config.strategy().getMaxAgentPlanMemorySize() ) {
+			config.strategy().setMaxAgentPlanMemorySize( maxNumberOfPlans );
 		}
 
+		// Same leisure/shopping/other options as actitopp used for the initial locations; facilities that already have
+		// such options (e.g. written by SecondaryActivityOptions.main) are left as they are
+		SecondaryActivityOptions.assignRandomly( scenario.getActivityFacilities(), SecondaryActivityOptions.DEFAULT_SEED );
+
 		// ### CONTROL(L)ER: ###
 
 		Controler controler = new Controler(scenario);
@@ -93,34 +93,43 @@ public class RunMatsimFromConfigFile {
 
 		// Plan adjustments
 		PopulationFactory pf = scenario.getPopulation().getFactory();;
+		int maxNumberOfPlans = 0;
 		for(Person person : scenario.getPopulation().getPersons().values()) {
-			final List<PlanElement> planElements = person.getSelectedPlan().getPlanElements();
-			// find home coordinate:
-			Coord homeCoord = null ;
-			for(PlanElement planElement : planElements){
-				if (planElement instanceof Activity) {
-					if (((Activity) planElement).getType().equals("home")) {
-						homeCoord = ((Activity) planElement).getCoord();
-						break ;
+			// All plans, as actitopp may create several alternative plans per person
+			for ( Plan plan : person.getPlans() ) {
+				final List<PlanElement> planElements = plan.getPlanElements();
+				// find home coordinate:
+				Coord homeCoord = null ;
+				for(PlanElement planElement : planElements){
+					if (planElement instanceof Activity) {
+						if (((Activity) planElement).getType().equals("home")) {
+							homeCoord = ((Activity) planElement).getCoord();
+							break ;
+						}
 					}
 				}
-			}
-			Gbl.assertNotNull( homeCoord );
+				Gbl.assertNotNull( homeCoord );
 
-			// remove last planElement if leg:
-			if ( planElements.get( planElements.size()-1) instanceof Leg ) {
-				planElements.remove( planElements.size()-1 ) ;
-			}
+				// remove last planElement if leg:
+				if ( planElements.get( planElements.size()-1) instanceof Leg ) {
+					planElements.remove( planElements.size()-1 ) ;
+				}
 
-			// bring people home if not at home; locachoice has problems if first/last act are not of "fixed" type
-			Activity lastAct = (Activity) planElements.get( planElements.size()-1 );
-			if ( !lastAct.getType().equals( "home" ) ) {
-				lastAct.setEndTime( 24.*3600.-1 );
-				Leg leg = pf.createLeg( "car" ) ;
-				planElements.add(leg) ;
-				Activity homeAct = pf.createActivityFromCoord( "home", homeCoord ) ;
-				planElements.add(homeAct) ;
+				// bring people home if not at home; locachoice has problems if first/last act are not of "fixed" type
+				Activity lastAct = (Activity) planElements.get( planElements.size()-1 );
+				if ( !lastAct.getType().equals( "home" ) ) {
+					lastAct.setEndTime( 24.*3600.-1 );
+					Leg leg = pf.createLeg( "car" ) ;
+					planElements.add(leg) ;
+					Activity homeAct = pf.createActivityFromCoord( "home", homeCoord ) ;
+					planElements.add(homeAct) ;
+				}
 			}
+			maxNumberOfPlans = Math.max( maxNumberOfPlans, person.getPlans().size() );
+		}
+		// Otherwise MATSim drops plans beyond its plan memory (by default 5) before the first iteration
+		if ( maxNumberOfPlans > config.strategy().getMaxAgentPlanMemorySize() ) {
+			config.strategy().setMaxAgentPlanMemorySize( maxNumberOfPlans );
 		}
 
 		// Facility adjustments
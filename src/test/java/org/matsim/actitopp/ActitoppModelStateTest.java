@@ -0,0 +1,106 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActitoppPerson;
+import edu.kit.ifv.mobitopp.actitopp.InvalidPatternException;
+import edu.kit.ifv.mobitopp.actitopp.ModelFileBase;
+import edu.kit.ifv.mobitopp.actitopp.RNGHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author dziemke
+ */
+public class ActitoppModelStateTest {
+    private static final int NUMBER_OF_PERSONS = 400;
+    private static final int NUMBER_OF_THREADS = 4;
+    private static final int MAX_ATTEMPTS = 100;
+    private static final long SEED = 4711;
+
+    @Test
+    public void testSharedModelGivesSameSchedulesAsModelPerThread() throws InterruptedException, ExecutionException {
+        List<ActitoppPersonInput> inputs = createInputs();
+        Map<Integer, String> perThreadSchedules = new ConcurrentHashMap<>();
+        Map<Integer, String> sharedSchedules = new ConcurrentHashMap<>();
+        ModelFileBase sharedFileBase = ActitoppModelState.getShared().getFileBase();
+
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        try {
+            // Every thread parses the model itself and generates every NUMBER_OF_THREADS-th person
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < NUMBER_OF_THREADS; thread++) {
+                int firstPerson = thread;
+                futures.add(executor.submit(() -> {
+                    ModelFileBase fileBase = ActitoppModelState.load().getFileBase();
+                    for (int i = firstPerson; i < inputs.size(); i += NUMBER_OF_THREADS) {
+                        perThreadSchedules.put(i, generateSchedule(fileBase, inputs.get(i), i));
+                    }
+                }));
+            }
+            // All threads use the shared model at the same time
+            for (int thread = 0; thread < NUMBER_OF_THREADS; thread++) {
+                int firstPerson = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = firstPerson; i < inputs.size(); i += NUMBER_OF_THREADS) {
+                        sharedSchedules.put(i, generateSchedule(sharedFileBase, inputs.get(i), i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(NUMBER_OF_PERSONS, sharedSchedules.size());
+        Assert.assertEquals("A shared model gives other schedules than one model per thread.", perThreadSchedules, sharedSchedules);
+    }
+
+    private static List<ActitoppPersonInput> createInputs() {
+        Random random = new Random(SEED);
+        // Employment classes as created by RunActitoppForIvtPopulation
+        int[] employmentClasses = {1, 2, 3, 4, 5, 7};
+        List<ActitoppPersonInput> inputs = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_PERSONS; i++) {
+            int employment = employmentClasses[random.nextInt(employmentClasses.length)];
+            double commutingDistanceToWork = employment == 1 || employment == 2 || employment == 5 ? 1. + random.nextInt(50) : 0.;
+            double commutingDistanceToEducation = employment == 4 ? 1. + random.nextInt(20) : 0.;
+            inputs.add(new ActitoppPersonInput(i, random.nextInt(2), random.nextInt(2), 18 + random.nextInt(60), employment,
+                    1 + random.nextInt(2), 1 + random.nextInt(4), random.nextInt(3), commutingDistanceToWork, commutingDistanceToEducation));
+        }
+        return inputs;
+    }
+
+    private static String generateSchedule(ModelFileBase fileBase, ActitoppPersonInput input, int person) {
+        ActitoppPerson actitoppPerson = input.createActitoppPerson();
+        RNGHelper random = new RNGHelper(ActiToppUtils.createSeed(SEED, person, 0));
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                actitoppPerson.generateSchedule(fileBase, random);
+                return describe(WeekSchedule.of(actitoppPerson.getWeekPattern()));
+            } catch (InvalidPatternException e) {
+                // Try again with the next random numbers, as RunActitoppForIvtPopulation does
+            }
+        }
+        return "no valid pattern";
+    }
+
+    private static String describe(WeekSchedule schedule) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+            description.append(schedule.getDayIndex(i)).append('/').append(schedule.getActivityType(i)).append('/')
+                    .append(schedule.getStartTime(i)).append('-').append(schedule.getEndTime(i)).append(' ');
+        }
+        return description.toString();
+    }
+}
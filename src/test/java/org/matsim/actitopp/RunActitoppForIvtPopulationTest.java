@@ -0,0 +1,103 @@
+package org.matsim.actitopp;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.actitopp.IvtPopulationParser.AttributeLabels;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * @author dziemke
+ */
+public class RunActitoppForIvtPopulationTest {
+    private static final int NUMBER_OF_PERSONS = 200;
+    private static final int CHECKPOINT_INTERVAL = 50;
+    private static final SyntheticScenario SYNTHETIC_SCENARIO = new SyntheticScenario(20, 4);
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testSamePlansWithOneAndSeveralThreads() {
+        Map<String, String> singleThreadPlans = generatePlans(1);
+        Map<String, String> multiThreadPlans = generatePlans(4);
+
+        Assert.assertFalse("No plans generated.", singleThreadPlans.isEmpty());
+        Assert.assertEquals("Plans depend on the number of threads.", singleThreadPlans, multiThreadPlans);
+    }
+
+    @Test
+    public void testResumedRunGivesSamePlansAsUninterruptedRun() throws IOException {
+        Map<String, String> uninterruptedPlans = generatePlans(1);
+
+        String checkpointDirectory = utils.getOutputDirectory() + "checkpoints/";
+        generatePlansWithCheckpoints(checkpointDirectory);
+        keepOnlyFirstCheckpoint(checkpointDirectory);
+        Map<String, String> resumedPlans = generatePlansWithCheckpoints(checkpointDirectory);
+
+        Assert.assertEquals("Resuming from a checkpoint changes the plans.", uninterruptedPlans, resumedPlans);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointIsNotResumedWithChangedPopulation() throws IOException {
+        String checkpointDirectory = utils.getOutputDirectory() + "checkpoints/";
+        generatePlansWithCheckpoints(checkpointDirectory);
+        keepOnlyFirstCheckpoint(checkpointDirectory);
+
+        MutableScenario scenario = SYNTHETIC_SCENARIO.createScenario(NUMBER_OF_PERSONS);
+        scenario.getPopulation().getPersons().get(Id.createPersonId(0)).getAttributes().putAttribute(AttributeLabels.number_of_cars.toString(), 7);
+        RunActitoppForIvtPopulation generator = SYNTHETIC_SCENARIO.createGenerator(scenario);
+        generator.setCheckpointing(checkpointDirectory, CHECKPOINT_INTERVAL);
+        generator.runActitopp();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointingIsNotCombinedWithArchive() {
+        MutableScenario scenario = SYNTHETIC_SCENARIO.createScenario(NUMBER_OF_PERSONS);
+        RunActitoppForIvtPopulation generator = SYNTHETIC_SCENARIO.createGenerator(scenario);
+        generator.setCheckpointing(utils.getOutputDirectory() + "checkpoints/", CHECKPOINT_INTERVAL);
+        generator.setWeekPatternArchive(utils.getOutputDirectory() + "week_patterns.bin.gz");
+        generator.runActitopp();
+    }
+
+    private static Map<String, String> generatePlansWithCheckpoints(String checkpointDirectory) {
+        MutableScenario scenario = SYNTHETIC_SCENARIO.createScenario(NUMBER_OF_PERSONS);
+        RunActitoppForIvtPopulation generator = SYNTHETIC_SCENARIO.createGenerator(scenario);
+        generator.setCheckpointing(checkpointDirectory, CHECKPOINT_INTERVAL);
+        generator.runActitopp();
+        return SyntheticScenario.describePlans(scenario.getPopulation());
+    }
+
+    // Makes the checkpoint look like that of a run that stopped after the first chunk
+    private static void keepOnlyFirstCheckpoint(String checkpointDirectory) throws IOException {
+        Path manifestFile = Paths.get(checkpointDirectory, "checkpoint.properties");
+        Properties manifest = new Properties();
+        try (InputStream inputStream = Files.newInputStream(manifestFile)) {
+            manifest.load(inputStream);
+        }
+        Assert.assertTrue("Expected several checkpoint chunks.", Integer.parseInt(manifest.getProperty("numberOfChunks")) > 1);
+        manifest.setProperty("numberOfChunks", "1");
+        try (OutputStream outputStream = Files.newOutputStream(manifestFile)) {
+            manifest.store(outputStream, null);
+        }
+    }
+
+    private static Map<String, String> generatePlans(int numberOfThreads) {
+        MutableScenario scenario = SYNTHETIC_SCENARIO.createScenario(NUMBER_OF_PERSONS);
+        RunActitoppForIvtPopulation generator = SYNTHETIC_SCENARIO.createGenerator(scenario);
+        generator.setNumberOfThreads(numberOfThreads);
+        generator.runActitopp();
+        return SyntheticScenario.describePlans(scenario.getPopulation());
+    }
+}
@@ -0,0 +1,51 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author dziemke
+ */
+public class ScheduleCacheTest {
+    // More than the initial size of the key table
+    private static final int NUMBER_OF_SCHEDULES = 3000;
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testSchedulesAreFoundByKeyAndPerson() {
+        String archiveFile = utils.getOutputDirectory() + "week_patterns.bin.gz";
+        try (WeekPatternArchive.Writer writer = new WeekPatternArchive.Writer(archiveFile)) {
+            for (int i = 0; i < NUMBER_OF_SCHEDULES; i++) {
+                writer.add(Id.createPersonId(i), 0, WeekPatternArchive.NO_MUNICIPALITY, createKey(i), createSchedule(i));
+            }
+            writer.add(Id.createPersonId("withoutKey"), 0, WeekPatternArchive.NO_MUNICIPALITY, WeekPatternArchive.NO_KEY, createSchedule(0));
+        }
+
+        ScheduleCache scheduleCache = new ScheduleCache(archiveFile);
+        for (int i = 0; i < NUMBER_OF_SCHEDULES; i++) {
+            WeekSchedule schedule = scheduleCache.get(Id.createPersonId(i), createKey(i));
+            Assert.assertNotNull("Schedule " + i + " not found.", schedule);
+            Assert.assertEquals(1, schedule.getNumberOfActivities());
+            Assert.assertEquals(ActivityType.HOME, schedule.getActivityType(0));
+            Assert.assertEquals(i, schedule.getDuration(0));
+        }
+        Assert.assertNull("Schedule of another person reused.", scheduleCache.get(Id.createPersonId(1), createKey(0)));
+        Assert.assertNull("Schedule with unknown key found.", scheduleCache.get(Id.createPersonId(0), createKey(NUMBER_OF_SCHEDULES)));
+        Assert.assertNull("Schedule without key found.", scheduleCache.get(Id.createPersonId("withoutKey"), WeekPatternArchive.NO_KEY));
+        scheduleCache.close();
+    }
+
+    private static long createKey(int i) {
+        return ActiToppUtils.createSeed(4711, i, 0);
+    }
+
+    private static WeekSchedule createSchedule(int duration) {
+        return new WeekSchedule(new byte[]{0}, new ActivityType[]{ActivityType.HOME}, new int[]{0}, new int[]{duration}, new int[]{duration});
+    }
+}
@@ -0,0 +1,128 @@
+package org.matsim.actitopp;
+
+import edu.kit.ifv.mobitopp.actitopp.ActivityType;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author dziemke
+ */
+public class WeekPatternArchiveTest {
+    // More than one block of the archive
+    private static final int NUMBER_OF_SCHEDULES = 5000;
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testWrittenSchedulesAreReadAgain() {
+        String archiveFile = utils.getOutputDirectory() + "week_patterns.bin.gz";
+        Random random = new Random(4711);
+        List<String> writtenSchedules = new ArrayList<>();
+        try (WeekPatternArchive.Writer writer = new WeekPatternArchive.Writer(archiveFile)) {
+            for (int i = 0; i < NUMBER_OF_SCHEDULES; i++) {
+                int alternative = i % WeekPatternArchive.MAX_ALTERNATIVES;
+                int workEduMunicipality = random.nextBoolean() ? WeekPatternArchive.NO_MUNICIPALITY : 1 + random.nextInt(3000);
+                long key = i % 10 == 0 ? WeekPatternArchive.NO_KEY : random.nextLong();
+                WeekSchedule schedule = i % 100 == 0 ? WeekSchedule.EMPTY : createSchedule(random);
+                writer.add(Id.createPersonId("person_" + i), alternative, workEduMunicipality, key, schedule);
+                writtenSchedules.add(describe("person_" + i, alternative, workEduMunicipality, key, schedule));
+            }
+        }
+
+        List<String> readSchedules = new ArrayList<>();
+        WeekPatternArchive.read(archiveFile, (personId, alternative, workEduMunicipality, key, schedule) ->
+                readSchedules.add(describe(personId.toString(), alternative, workEduMunicipality, key, schedule)));
+
+        Assert.assertEquals(writtenSchedules, readSchedules);
+    }
+
+    @Test
+    public void testVersion1ArchiveIsReadWithoutKeys() throws IOException {
+        String archiveFile = utils.getOutputDirectory() + "week_patterns_v1.bin.gz";
+        ActivityType[] activityTypes = {ActivityType.HOME, ActivityType.WORK};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(archiveFile))))) {
+            out.writeInt(0x57454b50); // "WEKP"
+            out.writeInt(1);
+            out.writeInt(activityTypes.length);
+            for (ActivityType activityType : activityTypes) {
+                out.writeUTF(activityType.name());
+            }
+            // One block of two schedules with two and one activities; version 1 has no keys
+            out.writeInt(2);
+            out.writeInt(3);
+            out.writeUTF("a");
+            out.writeUTF("b");
+            out.writeByte(0);
+            out.writeByte(1);
+            out.writeInt(261);
+            out.writeInt(WeekPatternArchive.NO_MUNICIPALITY);
+            out.writeInt(2);
+            out.writeInt(1);
+            out.write(new byte[]{0, 0, 6}); // day indices
+            out.write(new byte[]{1, 0, 0}); // activity types
+            for (int time : new int[]{480, 1020, 0}) { // start times
+                out.writeInt(time);
+            }
+            for (int time : new int[]{960, 1440, 1440}) { // end times
+                out.writeInt(time);
+            }
+            for (int time : new int[]{480, 420, 1440}) { // durations
+                out.writeInt(time);
+            }
+            out.writeInt(0);
+        }
+
+        List<String> readSchedules = new ArrayList<>();
+        WeekPatternArchive.read(archiveFile, (personId, alternative, workEduMunicipality, key, schedule) ->
+                readSchedules.add(describe(personId.toString(), alternative, workEduMunicipality, key, schedule)));
+
+        List<String> expectedSchedules = new ArrayList<>();
+        expectedSchedules.add(describe("a", 0, 261, WeekPatternArchive.NO_KEY, new WeekSchedule(new byte[]{0, 0},
+                new ActivityType[]{ActivityType.WORK, ActivityType.HOME}, new int[]{480, 1020}, new int[]{960, 1440}, new int[]{480, 420})));
+        expectedSchedules.add(describe("b", 1, WeekPatternArchive.NO_MUNICIPALITY, WeekPatternArchive.NO_KEY, new WeekSchedule(new byte[]{6},
+                new ActivityType[]{ActivityType.HOME}, new int[]{0}, new int[]{1440}, new int[]{1440})));
+        Assert.assertEquals(expectedSchedules, readSchedules);
+    }
+
+    private static WeekSchedule createSchedule(Random random) {
+        ActivityType[] allTypes = ActivityType.values();
+        int numberOfActivities = 1 + random.nextInt(30);
+        byte[] dayIndices = new byte[numberOfActivities];
+        ActivityType[] activityTypes = new ActivityType[numberOfActivities];
+        int[] startTimes = new int[numberOfActivities];
+        int[] endTimes = new int[numberOfActivities];
+        int[] durations = new int[numberOfActivities];
+        for (int i = 0; i < numberOfActivities; i++) {
+            dayIndices[i] = (byte) (i * 7 / numberOfActivities);
+            activityTypes[i] = allTypes[random.nextInt(allTypes.length)];
+            startTimes[i] = random.nextInt(1440);
+            durations[i] = random.nextInt(600);
+            endTimes[i] = startTimes[i] + durations[i];
+        }
+        return new WeekSchedule(dayIndices, activityTypes, startTimes, endTimes, durations);
+    }
+
+    private static String describe(String personId, int alternative, int workEduMunicipality, long key, WeekSchedule schedule) {
+        StringBuilder description = new StringBuilder();
+        description.append(personId).append(' ').append(alternative).append(' ').append(workEduMunicipality).append(' ').append(key).append(':');
+        for (int i = 0; i < schedule.getNumberOfActivities(); i++) {
+            description.append(' ').append(schedule.getDayIndex(i)).append('/').append(schedule.getActivityType(i))
+                    .append('/').append(schedule.getStartTime(i)).append('-').append(schedule.getEndTime(i))
+                    .append('/').append(schedule.getDuration(i));
+        }
+        return description.toString();
+    }
+}